@@ -0,0 +1,95 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import cs455.scaling.util.TransmissionUtilities;
+
+/**
+ * Multiple producers adding messages to the batches of the thread pool
+ * manager, as receivers on different connections do.
+ *
+ * Every benchmark thread has a loopback connection of its own, and the
+ * batches are hashed and acknowledged by the worker threads, so the
+ * producers contend on the accumulator and are held back once the
+ * workers fall behind.
+ *
+ * @author stock
+ *
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@Threads( 4 )
+public class AddUnitBenchmark {
+
+  @Param( { "10", "100" } )
+  public int batchSize;
+
+  @Param( { "4" } )
+  public int workers;
+
+  private BufferPool pool;
+
+  private ThreadPoolManager manager;
+
+  /**
+   * Start the worker threads of the thread pool manager.
+   *
+   */
+  @Setup
+  public void setup() {
+    pool = new BufferPool( TransmissionUtilities.EIGHT_KB );
+    manager = new ThreadPoolManager( new int[] { 0, workers, batchSize, 1 },
+        new ServerStatistics( pool ), pool );
+    manager.start();
+  }
+
+  @TearDown
+  public void tearDown() {
+    manager.shutdown();
+  }
+
+  /**
+   * The connection of a single producer.
+   */
+  @State( Scope.Thread )
+  public static class Producer {
+
+    private Loopback loopback;
+
+    @Setup
+    public void setup(AddUnitBenchmark benchmark) throws IOException {
+      loopback = Loopback.open( benchmark.pool,
+          TransmissionUtilities.BINARY_ACKS );
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      loopback.close();
+    }
+  }
+
+  @Benchmark
+  public void addUnit(Producer producer) {
+    ByteBuffer payload = pool.lease();
+    payload.position( payload.limit() ).flip();
+    manager.addUnit( payload, producer.loopback.connection() );
+  }
+}
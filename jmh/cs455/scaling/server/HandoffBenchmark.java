@@ -0,0 +1,95 @@
+package cs455.scaling.server;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import cs455.scaling.server.task.Task;
+
+/**
+ * Round trip of an empty task from a producer, through the scheduler,
+ * to a {@link WorkerThread} and back, which is the cost of handing
+ * work to the thread pool.
+ *
+ * @author stock
+ *
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class HandoffBenchmark {
+
+  @Param( { "fifo", "stealing" } )
+  public String scheduler;
+
+  @Param( { "8" } )
+  public int workers;
+
+  private Scheduler queue;
+
+  private Thread[] threads;
+
+  /**
+   * Start the worker threads taking tasks from the scheduler.
+   *
+   */
+  @Setup
+  public void setup() {
+    queue = ThreadPoolManager.newScheduler( scheduler, workers );
+    threads = new Thread[ workers ];
+    for ( int i = 0; i < workers; ++i )
+    {
+      threads[ i ] = new Thread( new WorkerThread( queue, i ) );
+      threads[ i ].setDaemon( true );
+      threads[ i ].start();
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws InterruptedException {
+    for ( Thread thread : threads )
+    {
+      thread.interrupt();
+    }
+    for ( Thread thread : threads )
+    {
+      thread.join();
+    }
+  }
+
+  /**
+   * A task that only marks itself as processed.
+   */
+  @State( Scope.Thread )
+  public static class Handoff implements Task {
+
+    private volatile boolean processed;
+
+    @Override
+    public void process() {
+      processed = true;
+    }
+  }
+
+  @Benchmark
+  public void handoff(Handoff task) throws InterruptedException {
+    task.processed = false;
+    queue.put( task );
+    while ( !task.processed )
+    {
+      Thread.yield();
+    }
+  }
+}
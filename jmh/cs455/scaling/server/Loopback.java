@@ -0,0 +1,107 @@
+package cs455.scaling.server;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import cs455.scaling.util.TransmissionUtilities;
+
+/**
+ * A negotiated client connection over loopback, for benchmarking the
+ * server without a reactor.
+ *
+ * The server side is left in blocking mode, so acknowledgements are
+ * always written completely, and a daemon thread on the client side
+ * reads and discards them.
+ *
+ * @author stock
+ *
+ */
+final class Loopback implements Closeable {
+
+  private final SocketChannel client;
+
+  private final Connection connection;
+
+  private Loopback(SocketChannel client, Connection connection) {
+    this.client = client;
+    this.connection = connection;
+  }
+
+  /**
+   * Connect a client over loopback, and negotiate the protocol with
+   * its hello.
+   *
+   * @param pool
+   * @param options the protocol options sent by the client
+   * @return the connected loopback
+   * @throws IOException
+   */
+  static Loopback open(BufferPool pool, int options) throws IOException {
+    SocketChannel client;
+    SocketChannel accepted;
+    try ( ServerSocketChannel server = ServerSocketChannel.open() )
+    {
+      server.bind(
+          new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ) );
+      client = SocketChannel.open( server.getLocalAddress() );
+      accepted = server.accept();
+    }
+    ByteBuffer hello =
+        ByteBuffer.allocate( TransmissionUtilities.HELLO_LENGTH );
+    hello.putLong( TransmissionUtilities.HELLO ).putInt( options ).flip();
+    while ( hello.hasRemaining() )
+    {
+      client.write( hello );
+    }
+    Connection connection = new Connection( accepted, null, null );
+    while ( !connection.isNegotiated() )
+    {
+      if ( connection.negotiate( pool ) == -1 )
+      {
+        throw new EOFException( "Client disconnected before negotiating." );
+      }
+    }
+    Thread drain = new Thread( () -> discard( client ), "loopback-drain" );
+    drain.setDaemon( true );
+    drain.start();
+    return new Loopback( client, connection );
+  }
+
+  /**
+   *
+   * @return the server side context of the connection
+   */
+  Connection connection() {
+    return connection;
+  }
+
+  /**
+   * Read and discard the acknowledgements until the connection closes.
+   *
+   * @param client
+   */
+  private static void discard(SocketChannel client) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect( 64 * 1024 );
+    try
+    {
+      while ( client.read( buffer ) != -1 )
+      {
+        buffer.clear();
+      }
+    } catch ( IOException e )
+    {
+      // The connection was closed by the benchmark
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    client.close();
+    connection.channel().close();
+  }
+}
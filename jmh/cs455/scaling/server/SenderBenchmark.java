@@ -0,0 +1,97 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import cs455.scaling.server.task.Sender;
+import cs455.scaling.util.TransmissionUtilities;
+
+/**
+ * A sender hashing a batch and writing the acknowledgements to its
+ * clients over loopback, with the messages of the batch spread evenly
+ * over the clients.
+ *
+ * @author stock
+ *
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class SenderBenchmark {
+
+  @Param( { "10", "100" } )
+  public int batchSize;
+
+  @Param( { "1", "8" } )
+  public int clients;
+
+  @Param( { "1", "3" } )
+  public int options;
+
+  private BufferPool pool;
+
+  private ServerStatistics statistics;
+
+  private Loopback[] loopbacks;
+
+  /**
+   * Connect the clients of the batches.
+   *
+   * @throws IOException
+   */
+  @Setup
+  public void setup() throws IOException {
+    pool = new BufferPool( TransmissionUtilities.EIGHT_KB );
+    statistics = new ServerStatistics( pool );
+    loopbacks = new Loopback[ clients ];
+    for ( int i = 0; i < clients; ++i )
+    {
+      loopbacks[ i ] = Loopback.open( pool, options );
+      statistics.register( loopbacks[ i ].connection() );
+    }
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    for ( Loopback loopback : loopbacks )
+    {
+      loopback.close();
+    }
+  }
+
+  /**
+   * Lease the messages of a batch, as the receivers would, and process
+   * them with a new sender, which releases them.
+   *
+   */
+  @Benchmark
+  public void process() {
+    ByteBuffer[] data = new ByteBuffer[ batchSize ];
+    Connection[] connections = new Connection[ batchSize ];
+    int[] sequences = new int[ batchSize ];
+    for ( int i = 0; i < batchSize; ++i )
+    {
+      data[ i ] = pool.lease();
+      data[ i ].position( data[ i ].limit() ).flip();
+      connections[ i ] = loopbacks[ i % clients ].connection();
+      sequences[ i ] = i;
+    }
+    new Sender( statistics, pool, data, connections, sequences, null, null,
+        0 ).process();
+  }
+}
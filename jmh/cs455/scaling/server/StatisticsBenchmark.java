@@ -0,0 +1,69 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import cs455.scaling.util.TransmissionUtilities;
+
+/**
+ * Senders on several threads counting acknowledged messages, each for
+ * a connection of its own, against the shared server total.
+ *
+ * @author stock
+ *
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+@Threads( 4 )
+public class StatisticsBenchmark {
+
+  private ServerStatistics statistics;
+
+  @Setup
+  public void setup() {
+    statistics = new ServerStatistics(
+        new BufferPool( TransmissionUtilities.EIGHT_KB ) );
+  }
+
+  /**
+   * The registered connection of a single sender thread. The channel
+   * is never connected, as only its context is needed.
+   */
+  @State( Scope.Thread )
+  public static class Client {
+
+    private Connection connection;
+
+    @Setup
+    public void setup(StatisticsBenchmark benchmark) throws IOException {
+      connection = new Connection( SocketChannel.open(), null, null );
+      benchmark.statistics.register( connection );
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+      connection.channel().close();
+    }
+  }
+
+  @Benchmark
+  public void increment(Client client) {
+    statistics.increment( client.connection, 1 );
+  }
+}
@@ -0,0 +1,63 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Hashing a single 8 KB message to its hex acknowledgement; through
+ * the original <code>String</code> returning method, and through the
+ * per-thread hash engine used by the sender.
+ *
+ * @author stock
+ *
+ */
+@State( Scope.Thread )
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.SECONDS )
+@Warmup( iterations = 3, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 1 )
+public class HashBenchmark {
+
+  private final byte[] bytes = new byte[ TransmissionUtilities.EIGHT_KB ];
+
+  private final ByteBuffer payload =
+      ByteBuffer.allocateDirect( TransmissionUtilities.EIGHT_KB );
+
+  private final ByteBuffer hex =
+      ByteBuffer.allocate( TransmissionUtilities.FORTY_B );
+
+  /**
+   * Fill the message with random bytes.
+   *
+   */
+  @Setup
+  public void setup() {
+    ThreadLocalRandom.current().nextBytes( bytes );
+    payload.put( bytes ).flip();
+  }
+
+  @Benchmark
+  public String sha1FromBytes() {
+    return TransmissionUtilities.SHA1FromBytes( bytes );
+  }
+
+  @Benchmark
+  public ByteBuffer hashEngineHex() {
+    payload.rewind();
+    hex.clear();
+    HashEngine.get().hex( payload, hex );
+    return hex;
+  }
+}
@@ -5,6 +5,7 @@ RATE=10
 POOL_SIZE=8
 BATCH_SIZE=30
 BATCH_TIME=5
+REACTORS=1
 
 DIR="$( cd "$( dirname "$0" )" && pwd )"
 BUILD="$DIR/build/classes/java/main"
@@ -26,7 +27,7 @@ LINES=`find . -name "*.java" -print | xargs wc -l | grep "total" | awk '{$1=$1};
     echo Project has "$LINES" lines
     gradle clean; gradle build
     open -a Terminal .
-    pushd $BUILD; java -cp . cs455.scaling.server.Server $PORT $POOL_SIZE $BATCH_SIZE $BATCH_TIME; popd;
+    pushd $BUILD; java -cp . cs455.scaling.server.Server $PORT $POOL_SIZE $BATCH_SIZE $BATCH_TIME $REACTORS; popd;
 else
     for tab in {1..5}
     do
@@ -0,0 +1,368 @@
+package cs455.scaling.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import cs455.scaling.client.Client;
+import cs455.scaling.client.ClientReactor;
+import cs455.scaling.client.ClientStatistics;
+import cs455.scaling.client.DigestSet;
+import cs455.scaling.util.LatencyHistogram;
+
+/**
+ * End-to-end load test that runs the server and simulated clients in
+ * one JVM over loopback, for every combination of thread pool size,
+ * batch-size and batch-time.
+ *
+ * Each configuration is warmed up, then measured for the acknowledged
+ * messages per-second, round trip percentiles, and the CPU and garbage
+ * collection time of the process. The results are compared to a stored
+ * baseline, and the process exits with an error if the throughput of
+ * any configuration drops, or its p99 rises, beyond the tolerance. The
+ * baseline is recorded when it does not exist, or when asked to. As a
+ * gate, a missing baseline is an error instead, since there is nothing
+ * to compare to.
+ *
+ * Configured with system properties:
+ *
+ * <ul>
+ * <li><code>cs455.scaling.harness.pools</code> - thread pool sizes
+ * ( default <code>4,8</code> )</li>
+ * <li><code>cs455.scaling.harness.batch.sizes</code> - batch-sizes
+ * ( default <code>10,50</code> )</li>
+ * <li><code>cs455.scaling.harness.batch.times</code> - batch-times in
+ * seconds ( default <code>1</code> )</li>
+ * <li><code>cs455.scaling.harness.clients</code> - simulated clients
+ * ( default 50 )</li>
+ * <li><code>cs455.scaling.harness.window</code> - messages in flight
+ * per client, or zero to send at the rate ( default 8 )</li>
+ * <li><code>cs455.scaling.harness.rate</code> - messages per-second of
+ * every client when the window is zero ( default 10 )</li>
+ * <li><code>cs455.scaling.harness.warmup</code> and
+ * <code>cs455.scaling.harness.duration</code> - seconds ( default 5 and
+ * 10 )</li>
+ * <li><code>cs455.scaling.harness.tolerance</code> - allowed fraction of
+ * regression ( default 0.1 )</li>
+ * <li><code>cs455.scaling.harness.baseline</code> - the baseline file
+ * ( default <code>perf/load-baseline.properties</code> )</li>
+ * <li><code>cs455.scaling.harness.update</code> - record a new
+ * baseline</li>
+ * <li><code>cs455.scaling.harness.gate</code> - fail when there is no
+ * baseline, rather than recording it</li>
+ * </ul>
+ *
+ * @author stock
+ *
+ */
+public class LoadHarness {
+
+  private static final int[] POOLS =
+      parse( System.getProperty( "cs455.scaling.harness.pools", "4,8" ) );
+
+  private static final int[] BATCH_SIZES = parse(
+      System.getProperty( "cs455.scaling.harness.batch.sizes", "10,50" ) );
+
+  private static final int[] BATCH_TIMES =
+      parse( System.getProperty( "cs455.scaling.harness.batch.times", "1" ) );
+
+  private static final int CLIENTS =
+      Integer.getInteger( "cs455.scaling.harness.clients", 50 );
+
+  private static final int WINDOW =
+      Integer.getInteger( "cs455.scaling.harness.window", 8 );
+
+  private static final int RATE =
+      Integer.getInteger( "cs455.scaling.harness.rate", 10 );
+
+  private static final int WARMUP =
+      Integer.getInteger( "cs455.scaling.harness.warmup", 5 );
+
+  private static final int DURATION =
+      Integer.getInteger( "cs455.scaling.harness.duration", 10 );
+
+  private static final double TOLERANCE = Double.parseDouble(
+      System.getProperty( "cs455.scaling.harness.tolerance", "0.1" ) );
+
+  private static final File BASELINE = new File( System.getProperty(
+      "cs455.scaling.harness.baseline", "perf/load-baseline.properties" ) );
+
+  private static final boolean UPDATE =
+      Boolean.getBoolean( "cs455.scaling.harness.update" );
+
+  private static final boolean GATE =
+      Boolean.getBoolean( "cs455.scaling.harness.gate" );
+
+  private static final com.sun.management.OperatingSystemMXBean OS =
+      ( com.sun.management.OperatingSystemMXBean ) ManagementFactory
+          .getOperatingSystemMXBean();
+
+  /**
+   * Client statistics that keep the acknowledgements and round trip
+   * times of the measurement, rather than printing them.
+   */
+  private static class Recorder extends ClientStatistics {
+
+    private final LongAdder acknowledged = new LongAdder();
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+
+    private Recorder(DigestSet outstanding) {
+      super( outstanding );
+    }
+
+    @Override
+    public void received(long rtt) {
+      acknowledged.increment();
+      latencies.record( rtt );
+    }
+  }
+
+  /**
+   * The measurement of a single configuration.
+   */
+  private static class Result {
+
+    private final String name;
+
+    private double throughput;
+
+    private double p50;
+
+    private double p99;
+
+    private double p999;
+
+    private double cpu;
+
+    private long gcMillis;
+
+    private long gcCount;
+
+    private Result(String name) {
+      this.name = name;
+    }
+  }
+
+  /**
+   * Measure every configuration, print the results, and compare them
+   * to the baseline.
+   *
+   * @param args unused
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void main(String[] args)
+      throws IOException, InterruptedException {
+    System.out.println( String.format( "%d clients, %s, %d s warmup, %d s "
+        + "measured", CLIENTS, WINDOW > 0 ? "window of " + WINDOW
+            : RATE + " messages/s each", WARMUP, DURATION ) );
+    List<Result> results = new ArrayList<>();
+    for ( int pool : POOLS )
+    {
+      for ( int batchSize : BATCH_SIZES )
+      {
+        for ( int batchTime : BATCH_TIMES )
+        {
+          results.add( measure( pool, batchSize, batchTime ) );
+        }
+      }
+    }
+    System.out.println( String.format( "%n%-24s %12s %10s %10s %10s %7s "
+        + "%8s %6s", "configuration", "messages/s", "p50 ms", "p99 ms",
+        "p99.9 ms", "cpu %", "gc ms", "gcs" ) );
+    for ( Result result : results )
+    {
+      System.out.println( String.format( "%-24s %12.1f %10.3f %10.3f "
+          + "%10.3f %7.1f %8d %6d", result.name, result.throughput,
+          result.p50, result.p99, result.p999, result.cpu, result.gcMillis,
+          result.gcCount ) );
+    }
+    if ( !compare( results ) )
+    {
+      System.exit( 1 );
+    }
+  }
+
+  /**
+   * Run the server and clients for a single configuration.
+   *
+   * @param pool the thread pool size
+   * @param batchSize
+   * @param batchTime in seconds
+   * @return the measurement
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static Result measure(int pool, int batchSize, int batchTime)
+      throws IOException, InterruptedException {
+    Result result = new Result(
+        "pool-" + pool + ".batch-" + batchSize + ".time-" + batchTime );
+    System.out.println( "Measuring " + result.name );
+
+    Server server =
+        new Server( new int[] { 0, pool, batchSize, batchTime, 1 } );
+    InetSocketAddress address = server.listen(
+        new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ) );
+
+    int options = Client.protocolOptions();
+    DigestSet hashes = new DigestSet();
+    Recorder recorder = new Recorder( hashes );
+    ClientReactor reactor =
+        new ClientReactor( hashes, recorder, RATE, options, WINDOW );
+    Thread thread = new Thread( reactor, "harness-clients" );
+    thread.start();
+    SocketChannel[] channels = new SocketChannel[ CLIENTS ];
+    for ( int i = 0; i < CLIENTS; ++i )
+    {
+      channels[ i ] = SocketChannel.open( address );
+      Client.hello( channels[ i ], options );
+      channels[ i ].configureBlocking( false );
+      reactor.register( channels[ i ] );
+    }
+
+    Thread.sleep( TimeUnit.SECONDS.toMillis( WARMUP ) );
+    recorder.acknowledged.reset();
+    recorder.latencies.snapshot();
+    long cpu = OS.getProcessCpuTime();
+    long gcMillis = gcMillis();
+    long gcCount = gcCount();
+    long start = System.nanoTime();
+
+    Thread.sleep( TimeUnit.SECONDS.toMillis( DURATION ) );
+    long acknowledged = recorder.acknowledged.sum();
+    long elapsed = System.nanoTime() - start;
+    recorder.latencies.snapshot();
+    result.cpu = 100.0 * ( OS.getProcessCpuTime() - cpu ) / elapsed
+        / Runtime.getRuntime().availableProcessors();
+    result.gcMillis = gcMillis() - gcMillis;
+    result.gcCount = gcCount() - gcCount;
+    result.throughput = acknowledged / ( elapsed / 1e9 );
+    result.p50 = recorder.latencies.percentile( 50 ) / 1e6;
+    result.p99 = recorder.latencies.percentile( 99 ) / 1e6;
+    result.p999 = recorder.latencies.percentile( 99.9 ) / 1e6;
+
+    // Stop sending before the server closes the connections
+    reactor.stop();
+    thread.join();
+    server.stop();
+    for ( SocketChannel channel : channels )
+    {
+      channel.close();
+    }
+    return result;
+  }
+
+  /**
+   * Compare the results to the baseline, or record them as the baseline
+   * if an update was asked for, or there is none yet outside of a gate.
+   *
+   * @param results
+   * @return false if any configuration regressed beyond the tolerance,
+   *         or there is no baseline to gate on
+   * @throws IOException
+   */
+  private static boolean compare(List<Result> results) throws IOException {
+    Properties baseline = new Properties();
+    if ( !UPDATE && GATE && !BASELINE.exists() )
+    {
+      System.out.println( "\nThere is no baseline in " + BASELINE
+          + " to gate on. Record one on this machine with "
+          + "cs455.scaling.harness.update=true." );
+      return false;
+    }
+    if ( UPDATE || !BASELINE.exists() )
+    {
+      for ( Result result : results )
+      {
+        baseline.setProperty( result.name + ".throughput",
+            Double.toString( result.throughput ) );
+        baseline.setProperty( result.name + ".p99",
+            Double.toString( result.p99 ) );
+      }
+      try ( OutputStream out = new FileOutputStream( BASELINE ) )
+      {
+        baseline.store( out, "Load harness baseline - messages/s and p99 "
+            + "round trip in ms, with " + CLIENTS + " clients" );
+      }
+      System.out.println( "\nRecorded the baseline in " + BASELINE );
+      return true;
+    }
+    try ( InputStream in = new FileInputStream( BASELINE ) )
+    {
+      baseline.load( in );
+    }
+    boolean passed = true;
+    System.out.println( String.format( "%nCompared to %s with a tolerance "
+        + "of %.0f%%", BASELINE, TOLERANCE * 100 ) );
+    for ( Result result : results )
+    {
+      String throughput =
+          baseline.getProperty( result.name + ".throughput" );
+      String p99 = baseline.getProperty( result.name + ".p99" );
+      if ( throughput == null || p99 == null )
+      {
+        System.out.println( result.name + ": no baseline" );
+        continue;
+      }
+      double expected = Double.parseDouble( throughput );
+      double limit = Double.parseDouble( p99 );
+      boolean slower = result.throughput < expected * ( 1 - TOLERANCE );
+      boolean later = result.p99 > limit * ( 1 + TOLERANCE );
+      System.out.println( String.format( "%s: %.1f messages/s ( baseline "
+          + "%.1f ), p99 %.3f ms ( baseline %.3f )%s", result.name,
+          result.throughput, expected, result.p99, limit,
+          slower || later ? " REGRESSED" : "" ) );
+      passed &= !slower && !later;
+    }
+    return passed;
+  }
+
+  private static long gcMillis() {
+    long total = 0;
+    for ( GarbageCollectorMXBean gc : ManagementFactory
+        .getGarbageCollectorMXBeans() )
+    {
+      total += Math.max( gc.getCollectionTime(), 0 );
+    }
+    return total;
+  }
+
+  private static long gcCount() {
+    long total = 0;
+    for ( GarbageCollectorMXBean gc : ManagementFactory
+        .getGarbageCollectorMXBeans() )
+    {
+      total += Math.max( gc.getCollectionCount(), 0 );
+    }
+    return total;
+  }
+
+  /**
+   * Parse a comma separated list of positive integers.
+   *
+   * @param values
+   * @return the parsed values
+   */
+  private static int[] parse(String values) {
+    String[] split = values.split( "," );
+    int[] parsed = new int[ split.length ];
+    for ( int i = 0; i < split.length; ++i )
+    {
+      parsed[ i ] = Math.max( Integer.parseInt( split[ i ].trim() ), 1 );
+    }
+    return parsed;
+  }
+}
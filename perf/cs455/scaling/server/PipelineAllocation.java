@@ -0,0 +1,219 @@
+package cs455.scaling.server;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import cs455.scaling.client.Client;
+import cs455.scaling.util.TransmissionUtilities;
+
+/**
+ * Measures the bytes allocated by the server per message, as messages
+ * are read by the {@link cs455.scaling.server.task.Receiver}, added to
+ * a batch, and hashed and acknowledged by the
+ * {@link cs455.scaling.server.task.Sender}.
+ *
+ * A server is started in-process, and a single client sends a fixed
+ * number of messages over loopback, keeping a window of messages in
+ * flight. The allocation of every server thread is read from the
+ * thread allocation counters of the JVM, and the process exits with an
+ * error if it exceeds the budget per message, so it can be used as a
+ * check.
+ *
+ * The budget is set in bytes per message with the
+ * <code>cs455.scaling.allocation.budget</code> system property
+ * ( default 256 ).
+ *
+ * @author stock
+ *
+ */
+public class PipelineAllocation {
+
+  private static final int WARMUP = 50000;
+
+  private static final int MESSAGES = 100000;
+
+  private static final int WINDOW = 64;
+
+  private static final int BATCH_SIZE = 10;
+
+  private static final int THREADS = 4;
+
+  private static final long BUDGET =
+      Long.getLong( "cs455.scaling.allocation.budget", 256 );
+
+  private static final com.sun.management.ThreadMXBean THREAD_BEAN =
+      ( com.sun.management.ThreadMXBean ) ManagementFactory.getThreadMXBean();
+
+  /**
+   * Send the messages, and print the bytes allocated per message by
+   * each group of server threads.
+   *
+   * @param args unused
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public static void main(String[] args)
+      throws IOException, InterruptedException {
+    Server server =
+        new Server( new int[] { 0, THREADS, BATCH_SIZE, 1, 1 } );
+    InetSocketAddress address = server.listen(
+        new InetSocketAddress( InetAddress.getLoopbackAddress(), 0 ) );
+    SocketChannel channel = SocketChannel.open( address );
+    int options = TransmissionUtilities.BINARY_ACKS;
+    Client.hello( channel, options );
+
+    Semaphore window = new Semaphore( WINDOW );
+    Thread reader = new Thread(
+        () -> acknowledge( channel, options, window ), "allocation-reader" );
+    reader.setDaemon( true );
+    reader.start();
+
+    ByteBuffer payload =
+        ByteBuffer.allocateDirect( TransmissionUtilities.EIGHT_KB );
+    TransmissionUtilities.randomize( payload );
+    send( channel, payload, window, WARMUP );
+
+    long[] excluded =
+        { Thread.currentThread().getId(), reader.getId() };
+    Map<Long, Long> before = allocated( excluded );
+    send( channel, payload, window, MESSAGES );
+    Map<Long, Long> after = allocated( excluded );
+
+    Map<String, Long> groups = new TreeMap<>();
+    long total = 0;
+    for ( Map.Entry<Long, Long> entry : after.entrySet() )
+    {
+      long bytes = entry.getValue()
+          - before.getOrDefault( entry.getKey(), 0L );
+      total += bytes;
+      groups.merge( group( entry.getKey() ), bytes, Long::sum );
+    }
+    System.out.println(
+        String.format( "%-20s %16s", "server threads", "bytes/message" ) );
+    for ( Map.Entry<String, Long> entry : groups.entrySet() )
+    {
+      if ( entry.getValue() == 0 )
+      {
+        continue;
+      }
+      System.out.println( String.format( "%-20s %16.2f", entry.getKey(),
+          ( double ) entry.getValue() / MESSAGES ) );
+    }
+    double perMessage = ( double ) total / MESSAGES;
+    System.out.println(
+        String.format( "%-20s %16.2f", "total", perMessage ) );
+
+    server.stop();
+    channel.close();
+    if ( perMessage > BUDGET )
+    {
+      System.out.println( "The pipeline allocates more than the budget of "
+          + BUDGET + " bytes per message." );
+      System.exit( 1 );
+    }
+  }
+
+  /**
+   * Send messages while the window has room, and wait until all of them
+   * have been acknowledged.
+   *
+   * @param channel
+   * @param payload
+   * @param window
+   * @param messages
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private static void send(SocketChannel channel, ByteBuffer payload,
+      Semaphore window, int messages)
+      throws IOException, InterruptedException {
+    for ( int i = 0; i < messages; ++i )
+    {
+      window.acquire();
+      payload.rewind();
+      while ( payload.hasRemaining() )
+      {
+        channel.write( payload );
+      }
+    }
+    window.acquire( WINDOW );
+    window.release( WINDOW );
+  }
+
+  /**
+   * Read acknowledgements until the connection closes, releasing a slot
+   * of the window for each.
+   *
+   * @param channel
+   * @param options the negotiated protocol options
+   * @param window
+   */
+  private static void acknowledge(SocketChannel channel, int options,
+      Semaphore window) {
+    int length = TransmissionUtilities.ackLength( options );
+    ByteBuffer acks = ByteBuffer.allocateDirect( length * WINDOW );
+    try
+    {
+      while ( true )
+      {
+        if ( channel.read( acks ) == -1 )
+        {
+          throw new EOFException();
+        }
+        int frames = acks.position() / length;
+        acks.flip().position( frames * length );
+        acks.compact();
+        window.release( frames );
+      }
+    } catch ( IOException e )
+    {
+      // The connection was closed once measured
+    }
+  }
+
+  /**
+   * Read the bytes allocated by every live thread.
+   *
+   * @param excluded identifiers of the threads of the client
+   * @return the bytes allocated by each thread identifier
+   */
+  private static Map<Long, Long> allocated(long[] excluded) {
+    long[] ids = THREAD_BEAN.getAllThreadIds();
+    long[] bytes = THREAD_BEAN.getThreadAllocatedBytes( ids );
+    Map<Long, Long> allocated = new HashMap<>();
+    for ( int i = 0; i < ids.length; ++i )
+    {
+      if ( bytes[ i ] >= 0 && ids[ i ] != excluded[ 0 ]
+          && ids[ i ] != excluded[ 1 ] )
+      {
+        allocated.put( ids[ i ], bytes[ i ] );
+      }
+    }
+    return allocated;
+  }
+
+  /**
+   * Group the worker threads, which are not named, together.
+   *
+   * @param id
+   * @return the name of the thread, or its group
+   */
+  private static String group(long id) {
+    ThreadInfo info = THREAD_BEAN.getThreadInfo( id );
+    if ( info == null )
+    {
+      return "exited";
+    }
+    String name = info.getThreadName();
+    return name.startsWith( "Thread-" ) ? "workers" : name;
+  }
+}
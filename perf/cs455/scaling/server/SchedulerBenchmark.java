@@ -0,0 +1,166 @@
+package cs455.scaling.server;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import cs455.scaling.server.task.Task;
+
+/**
+ * Benchmark comparing the throughput of the scheduling modes of the
+ * thread pool manager at 8, 32 and 128 worker threads.
+ * 
+ * Producer threads stand in for the reactors, and submit a task that
+ * is followed up by a second task from the worker, similar to a
+ * receiver handing a batch to a sender.
+ * 
+ * @author stock
+ *
+ */
+public class SchedulerBenchmark {
+
+  private static final String[] MODES = { "fifo", "stealing" };
+
+  private static final int[] WORKERS = { 8, 32, 128 };
+
+  private static final int PRODUCERS = 2;
+
+  private static final long WARMUP = TimeUnit.SECONDS.toNanos( 1 );
+
+  private static final long MEASUREMENT = TimeUnit.SECONDS.toNanos( 3 );
+
+  /**
+   * Number of spins of work performed by each task, standing in for
+   * reading or hashing a message.
+   */
+  private static final int WORK = 2000;
+
+  private static volatile long sink;
+
+  /**
+   * Run the benchmark for every mode and number of workers, and print
+   * the completed tasks per second.
+   * 
+   * @param args unused
+   * @throws InterruptedException
+   */
+  public static void main(String[] args) throws InterruptedException {
+    System.out.println( String.format( "%-10s %8s %16s", "scheduler",
+        "workers", "tasks/second" ) );
+    for ( int workers : WORKERS )
+    {
+      for ( String mode : MODES )
+      {
+        double throughput = measure( mode, workers );
+        System.out.println(
+            String.format( "%-10s %8d %16.0f", mode, workers, throughput ) );
+      }
+    }
+  }
+
+  /**
+   * Measure a single scheduling mode.
+   * 
+   * @param mode
+   * @param workers
+   * @return the number of completed tasks per second
+   * @throws InterruptedException
+   */
+  private static double measure(String mode, int workers)
+      throws InterruptedException {
+    Scheduler scheduler = ThreadPoolManager.newScheduler( mode, workers );
+    Semaphore inFlight = new Semaphore( workers * 4 );
+    LongAdder completed = new LongAdder();
+
+    Thread[] threads = new Thread[ workers + PRODUCERS ];
+    for ( int i = 0; i < workers; ++i )
+    {
+      threads[ i ] = new Thread( new WorkerThread( scheduler, i ) );
+    }
+    for ( int i = workers; i < threads.length; ++i )
+    {
+      threads[ i ] = new Thread( () -> {
+        try
+        {
+          while ( true )
+          {
+            inFlight.acquire();
+            scheduler.put( new FollowedTask( scheduler, inFlight, completed ) );
+          }
+        } catch ( InterruptedException e )
+        {
+          return;
+        }
+      } );
+    }
+    for ( Thread thread : threads )
+    {
+      thread.start();
+    }
+
+    TimeUnit.NANOSECONDS.sleep( WARMUP );
+    long before = completed.sum();
+    long start = System.nanoTime();
+    TimeUnit.NANOSECONDS.sleep( MEASUREMENT );
+    double throughput = ( completed.sum() - before ) * 1E9
+        / ( System.nanoTime() - start );
+
+    for ( Thread thread : threads )
+    {
+      thread.interrupt();
+    }
+    for ( Thread thread : threads )
+    {
+      thread.join();
+    }
+    return throughput;
+  }
+
+  /**
+   * Spin over a small amount of work.
+   */
+  private static void work() {
+    long value = sink;
+    for ( int i = 0; i < WORK; ++i )
+    {
+      value = value * 31 + i;
+    }
+    sink = value;
+  }
+
+  /**
+   * Task submitted by a producer that schedules a follow-up task from
+   * the worker that processes it.
+   */
+  private static class FollowedTask implements Task {
+
+    private final Scheduler scheduler;
+
+    private final Semaphore inFlight;
+
+    private final LongAdder completed;
+
+    private FollowedTask(Scheduler scheduler, Semaphore inFlight,
+        LongAdder completed) {
+      this.scheduler = scheduler;
+      this.inFlight = inFlight;
+      this.completed = completed;
+    }
+
+    @Override
+    public void process() {
+      work();
+      try
+      {
+        scheduler.put( () -> {
+          work();
+          completed.add( 2 );
+          inFlight.release();
+        } );
+      } catch ( InterruptedException e )
+      {
+        inFlight.release();
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
@@ -0,0 +1,118 @@
+package cs455.scaling.util;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+/**
+ * Measures the bytes allocated per hashed message, comparing the
+ * original <code>MessageDigest.getInstance</code> and
+ * <code>BigInteger</code> path with the {@link HashEngine}.
+ *
+ * Allocation is read from the thread allocation counter of the JVM.
+ * The process exits with an error if hashing through the engine
+ * allocates, so it can be used as a check.
+ *
+ * @author stock
+ *
+ */
+public class HashAllocation {
+
+  private static final int WARMUP = 200000;
+
+  private static final int MESSAGES = 200000;
+
+  private static final com.sun.management.ThreadMXBean THREADS =
+      ( com.sun.management.ThreadMXBean ) ManagementFactory.getThreadMXBean();
+
+  /**
+   * A single way of hashing a message.
+   */
+  private interface Path {
+    void hash(ByteBuffer message, ByteBuffer out);
+  }
+
+  /**
+   * Measure every path, and print the bytes allocated per message.
+   *
+   * @param args unused
+   * @throws NoSuchAlgorithmException
+   */
+  public static void main(String[] args) throws NoSuchAlgorithmException {
+    ByteBuffer message =
+        ByteBuffer.allocateDirect( TransmissionUtilities.EIGHT_KB );
+    byte[] bytes = new byte[ TransmissionUtilities.EIGHT_KB ];
+    new Random( 455 ).nextBytes( bytes );
+    message.put( bytes ).flip();
+    ByteBuffer out = ByteBuffer.allocate( TransmissionUtilities.FORTY_B );
+
+    System.out.println(
+        String.format( "%-16s %16s", "path", "bytes/message" ) );
+    measure( "original hex", message, out, HashAllocation::original );
+    double digest = measure( "engine digest", message, out,
+        ( data, buffer ) -> HashEngine.get().digest( data, buffer ) );
+    double hex = measure( "engine hex", message, out,
+        ( data, buffer ) -> HashEngine.get().hex( data, buffer ) );
+    if ( digest >= 1 || hex >= 1 )
+    {
+      System.out.println( "The hashing engine allocates per message." );
+      System.exit( 1 );
+    }
+  }
+
+  /**
+   * Hash the message repeatedly through a path after warming it up.
+   *
+   * @param name
+   * @param message
+   * @param out
+   * @param path
+   * @return the bytes allocated per message
+   */
+  private static double measure(String name, ByteBuffer message,
+      ByteBuffer out, Path path) {
+    run( WARMUP, message, out, path );
+    long thread = Thread.currentThread().getId();
+    long before = THREADS.getThreadAllocatedBytes( thread );
+    run( MESSAGES, message, out, path );
+    long allocated = THREADS.getThreadAllocatedBytes( thread ) - before;
+    double perMessage = ( double ) allocated / MESSAGES;
+    System.out
+        .println( String.format( "%-16s %16.2f", name, perMessage ) );
+    return perMessage;
+  }
+
+  private static void run(int messages, ByteBuffer message,
+      ByteBuffer out, Path path) {
+    for ( int i = 0; i < messages; ++i )
+    {
+      message.rewind();
+      out.clear();
+      path.hash( message, out );
+    }
+  }
+
+  /**
+   * The hashing performed before the engine; a new digest per message,
+   * and a hex string built through <code>BigInteger</code>.
+   *
+   * @param message
+   * @param out
+   */
+  private static void original(ByteBuffer message, ByteBuffer out) {
+    try
+    {
+      MessageDigest digest = MessageDigest.getInstance( "SHA1" );
+      digest.update( message );
+      BigInteger hashInt = new BigInteger( 1, digest.digest() );
+      out.put( String.format( "%40s", hashInt.toString( 16 ) )
+          .replace( ' ', '0' ).getBytes() );
+    } catch ( NoSuchAlgorithmException e )
+    {
+      throw new IllegalStateException( e );
+    }
+  }
+}
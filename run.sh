@@ -20,6 +20,7 @@ RATE=3
 POOL_SIZE=10
 BATCH_SIZE=50
 BATCH_TIME=5
+REACTORS=1
 
 ## Build Project (optional)
 
@@ -29,7 +30,7 @@ echo Project has "$LINES" lines
 
 ## Launch Server
 
-gnome-terminal --geometry=132x43 -e "ssh -t $HOST 'cd $BUILD; java -cp . cs455.scaling.server.Server $PORT $POOL_SIZE $BATCH_SIZE $BATCH_TIME; bash;'"
+gnome-terminal --geometry=132x43 -e "ssh -t $HOST 'cd $BUILD; java -cp . cs455.scaling.server.Server $PORT $POOL_SIZE $BATCH_SIZE $BATCH_TIME $REACTORS; bash;'"
 sleep 3
 
 ## Launch Clients
@@ -0,0 +1,123 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import cs455.scaling.util.HashEngine;
+import cs455.scaling.util.TransmissionUtilities;
+
+/**
+ * Decodes the acknowledgements of a connection in bulk.
+ *
+ * Each read fills as much of a large buffer as the channel has
+ * available, and every complete acknowledgement frame is matched
+ * against the digests of the sent messages. A frame split across reads
+ * is carried forward to the next read, so acknowledgements that TCP
+ * splits or coalesces are always decoded correctly, with far fewer
+ * reads than acknowledgements.
+ *
+ * @author stock
+ *
+ */
+public class AckDecoder {
+
+  /**
+   * Holds received bytes that have not been decoded, in write mode.
+   */
+  private final ByteBuffer buffer;
+
+  /**
+   * Scratch buffer for the digest decoded from a hex acknowledgement.
+   */
+  private final ByteBuffer digest =
+      ByteBuffer.allocate( TransmissionUtilities.TWENTY_B );
+
+  private final int options;
+
+  private final int ackLength;
+
+  private final DigestSet hashes;
+
+  private final ClientStatistics statistics;
+
+  /**
+   * Default constructor - allocate the buffer for the specified number
+   * of frames.
+   *
+   * @param options the negotiated protocol options
+   * @param frames the number of acknowledgements that fit the buffer
+   * @param hashes the digests waiting to be acknowledged
+   * @param statistics
+   */
+  public AckDecoder(int options, int frames, DigestSet hashes,
+      ClientStatistics statistics) {
+    this.options = options;
+    this.ackLength = TransmissionUtilities.ackLength( options );
+    this.buffer = ByteBuffer.allocate( ackLength * frames );
+    this.hashes = hashes;
+    this.statistics = statistics;
+  }
+
+  /**
+   * Read once from the channel, and acknowledge every complete frame
+   * that has been received.
+   *
+   * @param channel
+   * @return the number of acknowledgements that matched a sent message,
+   *         or <code>-1</code> if the channel has reached end-of-stream
+   * @throws IOException
+   */
+  public int read(ReadableByteChannel channel) throws IOException {
+    if ( channel.read( buffer ) == -1 )
+    {
+      return -1;
+    }
+    buffer.flip();
+    int limit = buffer.limit();
+    int matched = 0;
+    while ( limit - buffer.position() >= ackLength )
+    {
+      int next = buffer.position() + ackLength;
+      buffer.limit( next );
+      if ( acknowledge( buffer ) )
+      {
+        ++matched;
+      }
+      buffer.limit( limit ).position( next );
+    }
+    buffer.compact();
+    return matched;
+  }
+
+  /**
+   * Acknowledge a response (containing a hash code), and remove it from
+   * the transmitted hashes if found. Hex responses are decoded to the
+   * raw digest first; any sequence number following the digest is not
+   * needed to match the response.
+   *
+   * @param response buffer with exactly one acknowledgement remaining
+   * @return true if the response matched a sent message
+   */
+  private boolean acknowledge(ByteBuffer response) {
+    ByteBuffer key = response;
+    if ( options == TransmissionUtilities.HEX_ACKS )
+    {
+      digest.clear();
+      if ( !HashEngine.unhex( response, digest ) )
+      {
+        statistics.unmatched();
+        return false;
+      }
+      digest.flip();
+      key = digest;
+    }
+    long sent = hashes.remove( key );
+    if ( sent == DigestSet.MISSING )
+    {
+      statistics.unmatched();
+      return false;
+    }
+    statistics.received( System.nanoTime() - sent );
+    return true;
+  }
+}
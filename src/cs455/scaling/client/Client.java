@@ -7,9 +7,8 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Date;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Timer;
+import java.util.concurrent.Semaphore;
 import cs455.scaling.util.Logger;
 import cs455.scaling.util.TransmissionUtilities;
 
@@ -31,6 +30,10 @@ import cs455.scaling.util.TransmissionUtilities;
  * respective client.</li>
  * </ul>
  * 
+ * The digests of sent messages are kept in a {@link DigestSet}, so an
+ * acknowledgement is matched in constant time without creating any
+ * objects.
+ * 
  * @author stock
  *
  */
@@ -42,17 +45,45 @@ public class Client {
    */
   private static final Logger LOG = new Logger( true, false );
 
-  private List<String> hashes;
+  /**
+   * Number of acknowledgements that can be decoded from a single read.
+   */
+  private static final int ACKS_PER_READ = 256;
+
+  private final DigestSet hashes;
+
+  /**
+   * Slots for messages in flight in the closed-loop mode, otherwise
+   * <code>null</code>.
+   */
+  private final Semaphore window;
 
   private SocketChannel channel;
 
   private final ClientStatistics statistics;
 
+  /**
+   * The protocol options sent in the hello to the server.
+   */
+  private final int options;
+
   /**
    * Driver method to setup a new client.
    * 
    * A new Sender Thread is created to send messages from this client.
    * 
+   * The acknowledgement protocol is chosen with the
+   * <code>cs455.scaling.protocol</code> system property; either
+   * <code>binary</code> ( default ) for raw digests, or <code>hex</code>
+   * for hex strings as expected by older servers. Binary
+   * acknowledgements are followed by a sequence number when
+   * <code>cs455.scaling.sequence</code> is <code>true</code>.
+   * 
+   * With <code>cs455.scaling.client.window</code> set to <i>W</i>, the
+   * client runs closed-loop; up to <i>W</i> messages are kept in flight,
+   * and the next is sent as soon as an acknowledgement arrives, ignoring
+   * the message rate.
+   * 
    * @param args command line arguments including; server-host,
    *        server-port, and messaging-rate.
    */
@@ -85,18 +116,24 @@ public class Client {
       LOG.error( "Unable to parse command line arguments. " + e.getMessage() );
       return;
     }
+    if ( messageRate <= 0 && window() == 0 )
+    {
+      LOG.error( "The message rate must be positive, unless a window is "
+          + "set with cs455.scaling.client.window." );
+      return;
+    }
     Client client;
 
     try
     {
-      client = new Client( args[ 0 ], serverPort );
+      client = new Client( args[ 0 ], serverPort, protocolOptions() );
     } catch ( IOException e )
     {
       LOG.error( "Unable to initialize. " + e.getMessage() );
       return;
     }
     ( new Thread( new SenderThread( client.statistics, client.channel,
-        messageRate, client.hashes ) ) ).start();
+        messageRate, client.hashes, client.window ) ) ).start();
 
     Timer timer = new Timer();
     final int interval = 20000; // 20 seconds in milliseconds
@@ -107,66 +144,115 @@ public class Client {
 
   /**
    * Client constructor which establishes a new connection with the
-   * server (as specified by the arguments). Allocates memory for the
-   * receiving buffer, as well as a new <code>LinkedList</code> for the
+   * server (as specified by the arguments). Allocates a new set for the
    * computed hashes.
+   * Unless hex acknowledgements are used, the hello is sent to negotiate
+   * the protocol before any message.
    * 
    * @param serverHost
    * @param serverPort
+   * @param options the protocol options
    * @throws IOException
    */
-  private Client(String serverHost, int serverPort) throws IOException {
+  private Client(String serverHost, int serverPort, int options)
+      throws IOException {
     channel =
         SocketChannel.open( new InetSocketAddress( serverHost, serverPort ) );
 
-    hashes = new LinkedList<String>();
+    this.options = options;
+    hello( channel, options );
+
+    hashes = new DigestSet();
 
-    statistics = new ClientStatistics();
+    int slots = window();
+    window = slots > 0 ? new Semaphore( slots ) : null;
+
+    statistics = new ClientStatistics( hashes );
   }
 
   /**
-   * Continuously try to read from the socket channel into the received
-   * buffer. New messages are acknowledged.
+   * Read the protocol options from the <code>cs455.scaling.protocol</code>
+   * and <code>cs455.scaling.sequence</code> system properties.
    * 
-   * @param messageRate
+   * @return the protocol options to negotiate with the server
    */
-  private void read(int messageRate) {
-    ByteBuffer receivingBuffer =
-        ByteBuffer.allocate( TransmissionUtilities.FORTY_B );
-
-    while ( true )
+  public static int protocolOptions() {
+    if ( "hex".equals( System.getProperty( "cs455.scaling.protocol" ) ) )
     {
-      try
-      {
-        channel.read( receivingBuffer );
+      return TransmissionUtilities.HEX_ACKS;
+    }
+    int options = TransmissionUtilities.BINARY_ACKS;
+    if ( Boolean.getBoolean( "cs455.scaling.sequence" ) )
+    {
+      options |= TransmissionUtilities.SEQUENCE_NUMBERS;
+    }
+    return options;
+  }
 
-        acknowledgeResponse( receivingBuffer );
+  /**
+   * Read the in-flight window from the
+   * <code>cs455.scaling.client.window</code> system property.
+   * 
+   * @return the number of messages kept in flight per connection in the
+   *         closed-loop mode, or zero for the open-loop mode
+   */
+  static int window() {
+    return Math.max( Integer.getInteger( "cs455.scaling.client.window", 0 ),
+        0 );
+  }
 
-        receivingBuffer.clear();
-      } catch ( IOException e )
-      {
-        LOG.error( "Unable to send / receive message. " + e.getMessage() );
-      }
+  /**
+   * Send the hello to negotiate the protocol, unless hex
+   * acknowledgements are used. The channel must be blocking.
+   * 
+   * @param channel
+   * @param options the protocol options
+   * @throws IOException
+   */
+  public static void hello(SocketChannel channel, int options)
+      throws IOException {
+    if ( options == TransmissionUtilities.HEX_ACKS )
+    {
+      return;
+    }
+    ByteBuffer hello =
+        ByteBuffer.allocate( TransmissionUtilities.HELLO_LENGTH );
+    hello.putLong( TransmissionUtilities.HELLO ).putInt( options ).flip();
+    while ( hello.hasRemaining() )
+    {
+      channel.write( hello );
     }
   }
 
   /**
-   * Acknowledge a response (containing a hash code), and remove it from
-   * the transmitted hashes if found.
+   * Continuously read acknowledgements from the socket channel in bulk.
+   * Each acknowledgement that matches a sent message frees a slot of the
+   * in-flight window in the closed-loop mode.
    * 
-   * @param receivingBuffer contains the hash value
+   * @param messageRate
    */
-  private void acknowledgeResponse(ByteBuffer receivingBuffer) {
-    synchronized ( hashes )
+  private void read(int messageRate) {
+    AckDecoder decoder =
+        new AckDecoder( options, ACKS_PER_READ, hashes, statistics );
+
+    while ( true )
     {
-      String response = new String( receivingBuffer.array() ).trim();
-      if ( hashes.remove( response ) )
+      try
       {
-        statistics.received();
-      } else
+        int acknowledged = decoder.read( channel );
+        if ( acknowledged == -1 )
+        {
+          LOG.error( "The server has closed the connection." );
+          channel.close();
+          return;
+        }
+        if ( window != null && acknowledged > 0 )
+        {
+          window.release( acknowledged );
+        }
+      } catch ( IOException e )
       {
-        LOG.error( "Unable to remove the response: " + response
-            + ", because it was not found." );
+        LOG.error( "Unable to send / receive message. " + e.getMessage() );
       }
     }
   }
@@ -0,0 +1,375 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import cs455.scaling.util.HashEngine;
+import cs455.scaling.util.Logger;
+import cs455.scaling.util.TransmissionUtilities;
+
+/**
+ * A reactor of the load generator that drives many simulated clients
+ * from a single selector and thread.
+ *
+ * The next message of every client is scheduled on a timing wheel at
+ * the message rate, so a thread does not sleep per connection. Clients
+ * start at a random offset within the first interval to spread the
+ * load evenly.
+ *
+ * A client that cannot send because its previous message is still
+ * being written keeps its deadline until it can. Each message is sent
+ * with the deadline it was scheduled for, so round trip times include
+ * the time spent behind schedule.
+ *
+ * In the closed-loop mode each client keeps a window of messages in
+ * flight, and sends the next message as soon as an acknowledgement
+ * frees a slot. The timing wheel then only checks every client for a
+ * window that has had no acknowledgement for the overdue timeout; its
+ * messages are given up on, and the window is refilled, so messages
+ * the server never acknowledges cannot stop the client for good. The
+ * digests are shared by all clients, so they are left to be counted as
+ * overdue.
+ *
+ * @author stock
+ *
+ */
+public class ClientReactor implements Runnable {
+
+  /**
+   * Have the ability to log output INFO, DEBUG, ERROR configured by
+   * Logger(INFO, DEBUG) and LOGGER#MASTER for ERROR settings.
+   */
+  private static final Logger LOG = new Logger( true, false );
+
+  private static final int WHEEL_SLOTS = 1024;
+
+  private static final long TICK = TimeUnit.MILLISECONDS.toNanos( 1 );
+
+  /**
+   * Number of acknowledgements of a client decoded from a single read.
+   */
+  private static final int ACKS_PER_READ = 64;
+
+  private final Selector selector;
+
+  private final TimingWheel wheel;
+
+  /**
+   * Channels that have been connected by another thread, and are
+   * waiting to be registered by the reactor thread.
+   */
+  private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+  private final DigestSet hashes;
+
+  private final ClientStatistics statistics;
+
+  private final int options;
+
+  /**
+   * Nanoseconds between messages of a single client.
+   */
+  private final long interval;
+
+  /**
+   * Messages in flight per client in the closed-loop mode, or zero.
+   */
+  private final int window;
+
+  private final Random random = new Random();
+
+  private volatile boolean running = true;
+
+  /**
+   * Direct buffer that every message is generated in, and sent from.
+   */
+  private final ByteBuffer payload =
+      ByteBuffer.allocateDirect( TransmissionUtilities.EIGHT_KB );
+
+  private final ByteBuffer digest =
+      ByteBuffer.allocate( TransmissionUtilities.TWENTY_B );
+
+  /**
+   * Default constructor - open the selector owned by this reactor.
+   *
+   * @param hashes shared by all clients for the digests waiting to be
+   *        acknowledged
+   * @param statistics shared by all clients
+   * @param messageRate messages per-second of every client
+   * @param options the negotiated protocol options
+   * @param window messages in flight per client for the closed-loop
+   *        mode, or zero to send at the message rate
+   * @throws IOException
+   */
+  public ClientReactor(DigestSet hashes, ClientStatistics statistics,
+      int messageRate, int options, int window) throws IOException {
+    this.selector = Selector.open();
+    this.wheel = new TimingWheel( WHEEL_SLOTS, TICK, System.nanoTime() );
+    this.hashes = hashes;
+    this.statistics = statistics;
+    this.options = options;
+    this.interval = TimeUnit.SECONDS.toNanos( 1 ) / Math.max( messageRate, 1 );
+    this.window = window;
+  }
+
+  /**
+   * Queue a connected, non-blocking channel to be registered with this
+   * reactor. The protocol must already have been negotiated.
+   *
+   * @param channel
+   */
+  public void register(SocketChannel channel) {
+    pending.add( channel );
+    selector.wakeup();
+  }
+
+  /**
+   * Stop the reactor thread, and close its selector. The channels are
+   * left open, to be closed by whoever connected them.
+   *
+   */
+  public void stop() {
+    running = false;
+    selector.wakeup();
+  }
+
+  /**
+   * Continuously send messages on schedule and read acknowledgements.
+   *
+   */
+  @Override
+  public void run() {
+    try
+    {
+      process();
+    } catch ( IOException e )
+    {
+      LOG.error( "Load generator failed. Exiting with error: "
+          + e.getMessage() );
+    }
+  }
+
+  /**
+   * Wait for readiness until the next tick of the timing wheel, then
+   * send the messages that are due.
+   *
+   * @throws IOException
+   */
+  private void process() throws IOException {
+    while ( running )
+    {
+      registerPending();
+      selector.select( wheel.untilNextTick( System.nanoTime() ) );
+      Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+      while ( iter.hasNext() )
+      {
+        SelectionKey key = iter.next();
+        iter.remove();
+        SimulatedClient client = ( SimulatedClient ) key.attachment();
+        if ( key.isValid() && key.isWritable() )
+        {
+          flush( client );
+        }
+        if ( key.isValid() && key.isReadable() )
+        {
+          read( client );
+        }
+      }
+      long now = System.nanoTime();
+      TimingWheel.Timeout timeout = wheel.expire( now );
+      while ( timeout != null )
+      {
+        SimulatedClient client = ( SimulatedClient ) timeout;
+        timeout = timeout.next();
+        if ( client.key().isValid() && window > 0 )
+        {
+          reclaim( client, now );
+        } else if ( client.key().isValid() )
+        {
+          long deadline = client.deadline();
+          wheel.schedule( client,
+              send( client, deadline ) ? deadline + interval : deadline );
+        }
+      }
+    }
+    selector.close();
+  }
+
+  /**
+   * Register the channels that were handed to this reactor since the
+   * last iteration, and schedule their first message.
+   *
+   */
+  private void registerPending() {
+    SocketChannel channel;
+    while ( ( channel = pending.poll() ) != null )
+    {
+      try
+      {
+        SelectionKey key = channel.register( selector, SelectionKey.OP_READ );
+        SimulatedClient client = new SimulatedClient( channel, key,
+            new AckDecoder( options, ACKS_PER_READ, hashes, statistics ) );
+        key.attach( client );
+        if ( window > 0 )
+        {
+          long now = System.nanoTime();
+          client.acknowledged( now );
+          wheel.schedule( client, now + ClientStatistics.OVERDUE );
+          fill( client );
+          continue;
+        }
+        long offset = ( long ) ( random.nextDouble() * interval );
+        wheel.schedule( client, System.nanoTime() + offset );
+      } catch ( ClosedChannelException e )
+      {
+        LOG.error( "Unable to register client: " + e.getMessage() );
+      }
+    }
+  }
+
+  /**
+   * Send a new message of random bytes, and add its digest to the set
+   * of hashes.
+   *
+   * @param client
+   * @param deadline the time the message was due to be sent
+   * @return false if the previous message of the client is still being
+   *         written, and this message has to wait
+   */
+  private boolean send(SimulatedClient client, long deadline) {
+    if ( client.isWriting() )
+    {
+      return false;
+    }
+    payload.clear();
+    TransmissionUtilities.randomize( payload );
+    digest.clear();
+    HashEngine.get().digest( payload, digest );
+    digest.flip();
+    payload.rewind();
+    hashes.add( digest, deadline );
+    try
+    {
+      client.channel().write( payload );
+      statistics.sent();
+      if ( payload.hasRemaining() )
+      {
+        client.defer( payload );
+        client.key()
+            .interestOps( SelectionKey.OP_READ | SelectionKey.OP_WRITE );
+      }
+    } catch ( IOException e )
+    {
+      close( client, e );
+    }
+    return true;
+  }
+
+  /**
+   * Send messages until the window of the client is full, or a message
+   * could not be written completely.
+   *
+   * @param client
+   */
+  private void fill(SimulatedClient client) {
+    while ( client.inFlight() < window && client.key().isValid()
+        && send( client, System.nanoTime() ) )
+    {
+      client.addInFlight( 1 );
+    }
+  }
+
+  /**
+   * Write the remainder of a message once the channel is writable.
+   *
+   * @param client
+   */
+  private void flush(SimulatedClient client) {
+    try
+    {
+      client.channel().write( client.outbound() );
+      if ( !client.isWriting() )
+      {
+        client.key().interestOps( SelectionKey.OP_READ );
+        if ( window > 0 )
+        {
+          fill( client );
+        }
+      }
+    } catch ( IOException e )
+    {
+      close( client, e );
+    }
+  }
+
+  /**
+   * Decode the available acknowledgements of a client. In the
+   * closed-loop mode every acknowledgement that matches a sent message
+   * frees a slot of the window.
+   *
+   * @param client
+   */
+  private void read(SimulatedClient client) {
+    int acknowledged;
+    try
+    {
+      acknowledged = client.decoder().read( client.channel() );
+    } catch ( IOException e )
+    {
+      close( client, e );
+      return;
+    }
+    if ( acknowledged == -1 )
+    {
+      close( client, new IOException( "server closed the connection" ) );
+    } else if ( window > 0 && acknowledged > 0 )
+    {
+      client.acknowledged( System.nanoTime() );
+      client.addInFlight( -acknowledged );
+      fill( client );
+    }
+  }
+
+  /**
+   * Give up on the messages of a client in the closed-loop mode once it
+   * has had no acknowledgement for the overdue timeout, and refill its
+   * window. The client is checked again an overdue timeout after its
+   * last acknowledgement.
+   *
+   * @param client
+   * @param now the current value of <code>System.nanoTime()</code>
+   */
+  private void reclaim(SimulatedClient client, long now) {
+    if ( client.inFlight() > 0
+        && now - client.acknowledgedAt() >= ClientStatistics.OVERDUE )
+    {
+      statistics.expired( client.inFlight() );
+      client.addInFlight( -client.inFlight() );
+      client.acknowledged( now );
+      fill( client );
+    }
+    long next = client.acknowledgedAt() + ClientStatistics.OVERDUE;
+    wheel.schedule( client,
+        next > now ? next : now + ClientStatistics.OVERDUE );
+  }
+
+  private void close(SimulatedClient client, IOException cause) {
+    LOG.error( "Unable to send / receive message. " + cause.getMessage() );
+    client.key().cancel();
+    try
+    {
+      client.channel().close();
+    } catch ( IOException e )
+    {
+      LOG.error( "Unable to close connection: " + e.getMessage() );
+    }
+  }
+}
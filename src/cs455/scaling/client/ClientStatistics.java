@@ -3,12 +3,23 @@ package cs455.scaling.client;
 import java.sql.Timestamp;
 import java.util.Date;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import cs455.scaling.util.LatencyHistogram;
 
 /**
  * Hold statistics for the client that pertain to the number of sent
  * and received messages.
  * 
+ * Messages waiting longer than the overdue timeout for their
+ * acknowledgement, messages given up on in the closed-loop mode, and
+ * acknowledgements that match no sent message, are counted as well.
+ * 
+ * The round trip time of every acknowledged message is recorded in a
+ * histogram, and its percentiles are printed for each interval. The
+ * round trip is measured from when the message was due to be sent, to
+ * correct for coordinated omission when a sender falls behind.
+ * 
  * @author stock
  *
  */
@@ -18,6 +29,33 @@ public class ClientStatistics extends TimerTask {
 
   private final AtomicInteger received = new AtomicInteger( 0 );
 
+  private final AtomicInteger unmatched = new AtomicInteger( 0 );
+
+  private final AtomicInteger expired = new AtomicInteger( 0 );
+
+  /**
+   * Nanoseconds after which an unacknowledged message is overdue, set
+   * in milliseconds by <code>cs455.scaling.client.overdue</code>. In the
+   * closed-loop mode, the window slots of overdue messages are
+   * reclaimed.
+   */
+  static final long OVERDUE = TimeUnit.MILLISECONDS
+      .toNanos( Long.getLong( "cs455.scaling.client.overdue", 10000 ) );
+
+  private final DigestSet outstanding;
+
+  private final LatencyHistogram latencies = new LatencyHistogram();
+
+  /**
+   * Default constructor - associate the statistics with the digests of
+   * the messages waiting to be acknowledged.
+   * 
+   * @param outstanding
+   */
+  public ClientStatistics(DigestSet outstanding) {
+    this.outstanding = outstanding;
+  }
+
   /**
    * Increment the number of <b>sent</b> messages for a given client.
    * 
@@ -28,11 +66,32 @@ public class ClientStatistics extends TimerTask {
 
   /**
    * Increment the number of <b>received</b> messages for a given
-   * client.
+   * client, and record the round trip time of the message.
    * 
+   * @param rtt nanoseconds since the message was due to be sent
    */
-  public void received() {
+  public void received(long rtt) {
     received.incrementAndGet();
+    latencies.record( rtt );
+  }
+
+  /**
+   * Increment the number of acknowledgements that did not match any
+   * message waiting to be acknowledged.
+   * 
+   */
+  public void unmatched() {
+    unmatched.incrementAndGet();
+  }
+
+  /**
+   * Count messages whose window slots were reclaimed without an
+   * acknowledgement.
+   * 
+   * @param messages
+   */
+  public void expired(int messages) {
+    expired.addAndGet( messages );
   }
 
   /**
@@ -50,9 +109,16 @@ public class ClientStatistics extends TimerTask {
         String.format( "%1$TF %1$TT", new Timestamp( new Date().getTime() ) );
     
     System.out.println( "[" + timestamp + "]" + " Total Sent Count: "
-        + sent.get() + ", Total Received Count: " + received.get() + "\n");
+        + sent.get() + ", Total Received Count: " + received.get()
+        + ", Outstanding: " + outstanding.size() + ", Overdue: "
+        + outstanding.overdue( System.nanoTime(), OVERDUE )
+        + ", Expired: " + expired.get() + ", Unmatched: " + unmatched.get() );
+    latencies.snapshot();
+    System.out.println( "Round Trip Time " + latencies.summary() + "\n" );
     
     sent.set( 0 );
     received.set( 0 );
+    unmatched.set( 0 );
+    expired.set( 0 );
   }
 }
@@ -0,0 +1,294 @@
+package cs455.scaling.client;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Concurrent set of the digests of messages that have been sent, and
+ * are waiting to be acknowledged by the server.
+ *
+ * Each twenty byte digest is packed into three <code>long</code> values,
+ * and kept in an open-addressing table with linear probing, so no
+ * objects are allocated per message. The table is split into segments
+ * that are locked independently, and the segment and slot are taken
+ * from the digest itself, since SHA-1 is uniformly distributed.
+ *
+ * The send time of each digest is kept to measure the round trip time
+ * of the message, and to count the messages that are overdue.
+ *
+ * @author stock
+ *
+ */
+public class DigestSet {
+
+  /**
+   * Returned by {@link #remove(ByteBuffer)} for a digest not found.
+   */
+  public static final long MISSING = Long.MIN_VALUE;
+
+  private static final int SEGMENTS = 16;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private final Segment[] segments = new Segment[ SEGMENTS ];
+
+  /**
+   * Default constructor - create the segments with a small table each.
+   *
+   */
+  public DigestSet() {
+    for ( int i = 0; i < SEGMENTS; ++i )
+    {
+      segments[ i ] = new Segment();
+    }
+  }
+
+  /**
+   * Add the twenty byte digest at the position of the buffer. The
+   * position is not changed. A digest added twice has to be removed
+   * twice.
+   *
+   * @param digest
+   * @param sent the time the message was sent, relative to
+   *        <code>System.nanoTime()</code>
+   */
+  public void add(ByteBuffer digest, long sent) {
+    long k0 = digest.getLong( digest.position() );
+    long k1 = digest.getLong( digest.position() + Long.BYTES );
+    long k2 = digest.getInt( digest.position() + 2 * Long.BYTES );
+    segment( k0 ).add( k0, k1, k2, sent );
+  }
+
+  /**
+   * Remove the twenty byte digest at the position of the buffer. The
+   * position is not changed.
+   *
+   * @param digest
+   * @return the time the message was sent, or {@link #MISSING} if the
+   *         digest was not found
+   */
+  public long remove(ByteBuffer digest) {
+    long k0 = digest.getLong( digest.position() );
+    long k1 = digest.getLong( digest.position() + Long.BYTES );
+    long k2 = digest.getInt( digest.position() + 2 * Long.BYTES );
+    return segment( k0 ).remove( k0, k1, k2 );
+  }
+
+  /**
+   *
+   * @return the number of digests waiting to be acknowledged
+   */
+  public int size() {
+    int size = 0;
+    for ( Segment segment : segments )
+    {
+      synchronized ( segment )
+      {
+        size += segment.size;
+      }
+    }
+    return size;
+  }
+
+  /**
+   * Count the digests that have been waiting longer than the timeout.
+   *
+   * @param now the current value of <code>System.nanoTime()</code>
+   * @param timeout in nanoseconds
+   * @return the number of overdue digests
+   */
+  public int overdue(long now, long timeout) {
+    int overdue = 0;
+    for ( Segment segment : segments )
+    {
+      overdue += segment.overdue( now, timeout );
+    }
+    return overdue;
+  }
+
+  /**
+   * Remove the digests that have been waiting longer than the timeout,
+   * so a late acknowledgement of them no longer matches.
+   *
+   * @param now the current value of <code>System.nanoTime()</code>
+   * @param timeout in nanoseconds
+   * @return the number of digests removed
+   */
+  public int expire(long now, long timeout) {
+    int expired = 0;
+    for ( Segment segment : segments )
+    {
+      expired += segment.expire( now, timeout );
+    }
+    return expired;
+  }
+
+  private Segment segment(long k0) {
+    return segments[ ( int ) ( k0 >>> 60 ) & ( SEGMENTS - 1 ) ];
+  }
+
+  /**
+   * A lock protected open-addressing table. Slot <code>i</code> holds
+   * its digest in <code>keys[ 3i ]</code> to <code>keys[ 3i + 2 ]</code>,
+   * and is empty when its count is zero.
+   */
+  private static final class Segment {
+
+    private long[] keys = new long[ INITIAL_CAPACITY * 3 ];
+
+    private long[] times = new long[ INITIAL_CAPACITY ];
+
+    private int[] counts = new int[ INITIAL_CAPACITY ];
+
+    private int mask = INITIAL_CAPACITY - 1;
+
+    /**
+     * Number of digests, counting each time a digest was added.
+     */
+    private int size = 0;
+
+    private int occupied = 0;
+
+    private synchronized void add(long k0, long k1, long k2, long now) {
+      ++size;
+      int slot = find( k0, k1, k2 );
+      if ( counts[ slot ] > 0 )
+      {
+        ++counts[ slot ];
+        return;
+      }
+      keys[ 3 * slot ] = k0;
+      keys[ 3 * slot + 1 ] = k1;
+      keys[ 3 * slot + 2 ] = k2;
+      times[ slot ] = now;
+      counts[ slot ] = 1;
+      // Keep the table at most half full so probes stay short
+      if ( ++occupied > ( mask + 1 ) >> 1 )
+      {
+        grow();
+      }
+    }
+
+    private synchronized long remove(long k0, long k1, long k2) {
+      int slot = find( k0, k1, k2 );
+      if ( counts[ slot ] == 0 )
+      {
+        return MISSING;
+      }
+      long sent = times[ slot ];
+      --size;
+      if ( --counts[ slot ] == 0 )
+      {
+        --occupied;
+        shift( slot );
+      }
+      return sent;
+    }
+
+    private synchronized int overdue(long now, long timeout) {
+      int overdue = 0;
+      for ( int i = 0; i <= mask; ++i )
+      {
+        if ( counts[ i ] > 0 && now - times[ i ] > timeout )
+        {
+          overdue += counts[ i ];
+        }
+      }
+      return overdue;
+    }
+
+    /**
+     * Empty every overdue slot. A slot is checked again once emptied, as
+     * shifting may have moved a following entry into it.
+     */
+    private synchronized int expire(long now, long timeout) {
+      int expired = 0;
+      int slot = 0;
+      while ( slot <= mask )
+      {
+        if ( counts[ slot ] > 0 && now - times[ slot ] > timeout )
+        {
+          expired += counts[ slot ];
+          size -= counts[ slot ];
+          counts[ slot ] = 0;
+          --occupied;
+          shift( slot );
+        } else
+        {
+          ++slot;
+        }
+      }
+      return expired;
+    }
+
+    /**
+     *
+     * @return the slot holding the digest, or the empty slot where it
+     *         would be added
+     */
+    private int find(long k0, long k1, long k2) {
+      int slot = home( k0 );
+      while ( counts[ slot ] > 0 && ( keys[ 3 * slot ] != k0
+          || keys[ 3 * slot + 1 ] != k1 || keys[ 3 * slot + 2 ] != k2 ) )
+      {
+        slot = ( slot + 1 ) & mask;
+      }
+      return slot;
+    }
+
+    private int home(long k0) {
+      return ( int ) k0 & mask;
+    }
+
+    /**
+     * Fill the emptied slot by moving back any following entry that
+     * would no longer be found, so no tombstones are needed.
+     *
+     * @param empty
+     */
+    private void shift(int empty) {
+      int slot = empty;
+      while ( true )
+      {
+        slot = ( slot + 1 ) & mask;
+        if ( counts[ slot ] == 0 )
+        {
+          break;
+        }
+        int home = home( keys[ 3 * slot ] );
+        // Move the entry unless its home lies cyclically in (empty, slot]
+        boolean reachable = empty <= slot ? empty < home && home <= slot
+            : empty < home || home <= slot;
+        if ( !reachable )
+        {
+          System.arraycopy( keys, 3 * slot, keys, 3 * empty, 3 );
+          times[ empty ] = times[ slot ];
+          counts[ empty ] = counts[ slot ];
+          counts[ slot ] = 0;
+          empty = slot;
+        }
+      }
+    }
+
+    private void grow() {
+      long[] oldKeys = keys;
+      long[] oldTimes = times;
+      int[] oldCounts = counts;
+      int capacity = ( mask + 1 ) << 1;
+      keys = new long[ capacity * 3 ];
+      times = new long[ capacity ];
+      counts = new int[ capacity ];
+      mask = capacity - 1;
+      for ( int i = 0; i < oldCounts.length; ++i )
+      {
+        if ( oldCounts[ i ] > 0 )
+        {
+          int slot = find( oldKeys[ 3 * i ], oldKeys[ 3 * i + 1 ],
+              oldKeys[ 3 * i + 2 ] );
+          System.arraycopy( oldKeys, 3 * i, keys, 3 * slot, 3 );
+          times[ slot ] = oldTimes[ i ];
+          counts[ slot ] = oldCounts[ i ];
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package cs455.scaling.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.Timer;
+import cs455.scaling.util.Logger;
+
+/**
+ * Load generator that simulates many clients from a single JVM.
+ *
+ * Every simulated client has its own connection to the server, and
+ * behaves as a {@link Client} would; sending 8 KB messages of random
+ * bytes at <i>R</i> per-second, and matching the acknowledgements. The
+ * connections are multiplexed over one or a few
+ * {@link ClientReactor}s, instead of two threads per client.
+ *
+ * With <code>cs455.scaling.client.window</code> set, every simulated
+ * client runs closed-loop with that many messages in flight, to find
+ * the saturation throughput of the server.
+ *
+ * The statistics are printed every 20 seconds for all of the simulated
+ * clients together.
+ *
+ * @author stock
+ *
+ */
+public class LoadGenerator {
+
+  /**
+   * Have the ability to log output INFO, DEBUG, ERROR configured by
+   * Logger(INFO, DEBUG) and LOGGER#MASTER for ERROR settings.
+   */
+  private static final Logger LOG = new Logger( true, false );
+
+  /**
+   * Driver method to connect the simulated clients and start the
+   * reactors.
+   *
+   * @param args command line arguments including; server-host,
+   *        server-port, message-rate, connections and optionally the
+   *        number of selectors.
+   */
+  public static void main(String[] args) {
+    if ( args.length < 4 )
+    {
+      LOG.error( "USAGE: server-host server-port message-rate connections "
+          + "[selectors]" );
+      return;
+    }
+    int serverPort, messageRate, connections, selectors;
+    try
+    {
+      serverPort = Integer.parseInt( args[ 1 ] );
+      messageRate = Integer.parseInt( args[ 2 ] );
+      connections = Integer.parseInt( args[ 3 ] );
+      selectors = args.length > 4 ? Integer.parseInt( args[ 4 ] ) : 1;
+    } catch ( NumberFormatException e )
+    {
+      LOG.error( "Unable to parse command line arguments. " + e.getMessage() );
+      return;
+    }
+    if ( messageRate <= 0 && Client.window() == 0 )
+    {
+      LOG.error( "The message rate must be positive, unless a window is "
+          + "set with cs455.scaling.client.window." );
+      return;
+    }
+    LOG.info( "Load generator starting up at: " + new Date() + " - with "
+        + connections + " clients on " + selectors + " selector(s)\n" );
+
+    int options = Client.protocolOptions();
+    DigestSet hashes = new DigestSet();
+    ClientStatistics statistics = new ClientStatistics( hashes );
+    ClientReactor[] reactors = new ClientReactor[ selectors ];
+    try
+    {
+      for ( int i = 0; i < selectors; ++i )
+      {
+        reactors[ i ] = new ClientReactor( hashes, statistics, messageRate,
+            options, Client.window() );
+        new Thread( reactors[ i ], "load-reactor-" + i ).start();
+      }
+      InetSocketAddress address =
+          new InetSocketAddress( args[ 0 ], serverPort );
+      for ( int i = 0; i < connections; ++i )
+      {
+        SocketChannel channel = SocketChannel.open( address );
+        Client.hello( channel, options );
+        channel.configureBlocking( false );
+        reactors[ i % selectors ].register( channel );
+      }
+    } catch ( IOException e )
+    {
+      LOG.error( "Unable to initialize. " + e.getMessage() );
+      System.exit( 1 );
+    }
+
+    Timer timer = new Timer();
+    final int interval = 20000; // 20 seconds in milliseconds
+    timer.schedule( statistics, 1000, interval );
+  }
+}
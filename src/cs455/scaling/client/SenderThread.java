@@ -3,8 +3,9 @@ package cs455.scaling.client;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
-import java.util.List;
-import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import cs455.scaling.util.HashEngine;
 import cs455.scaling.util.Logger;
 import cs455.scaling.util.TransmissionUtilities;
 
@@ -27,9 +28,20 @@ public class SenderThread implements Runnable {
 
   private final int messageRate;
 
-  private ByteBuffer sendingBuffer;
+  /**
+   * Direct buffer that every message is generated in, and sent from.
+   */
+  private final ByteBuffer sendingBuffer;
+
+  private final DigestSet hashes;
 
-  private final List<String> hashes;
+  private final Semaphore window;
+
+  /**
+   * Holds the digest of the message being sent.
+   */
+  private final ByteBuffer digest =
+      ByteBuffer.allocate( TransmissionUtilities.TWENTY_B );
 
   private final ClientStatistics statistics;
 
@@ -40,50 +52,99 @@ public class SenderThread implements Runnable {
    * 
    * @param channel to associate where to send the message
    * @param messageRate rate, per-second, of sending messages
-   * @param hashes stored in linked list to add hash of pay load
+   * @param hashes set to add the digest of each pay load to
+   * @param window slots for messages in flight, released as messages
+   *        are acknowledged, or <code>null</code> to send at the message
+   *        rate
    */
-  public SenderThread(ClientStatistics statistics, SocketChannel channel, int messageRate,
-      List<String> hashes) {
+  public SenderThread(ClientStatistics statistics, SocketChannel channel,
+      int messageRate, DigestSet hashes, Semaphore window) {
     this.statistics = statistics;
     this.channel = channel;
     this.messageRate = messageRate;
     this.hashes = hashes;
-    this.sendingBuffer = ByteBuffer.allocate( TransmissionUtilities.EIGHT_KB );
+    this.window = window;
+    this.sendingBuffer =
+        ByteBuffer.allocateDirect( TransmissionUtilities.EIGHT_KB );
   }
 
   /**
    * Continuously running to send messages to the server.
    * 
-   * New messages will be constructed with a random 8 KB array of bytes.
-   * The hash is computed, stored in the linked list of hashes, and then
-   * sent to the server. The buffer is cleared, and a new message
-   * constructed.
+   * New messages will be constructed with 8 KB of random bytes, filled
+   * into the same direct buffer for every message. The hash is computed,
+   * added to the set of hashes, and then written fully to the server.
+   * Nothing is allocated per message.
+   * 
+   * Messages are sent on a fixed-rate schedule. Each digest is added
+   * with the time its message was intended to be sent, so the round
+   * trip time includes any delay from the sender falling behind
+   * schedule, rather than omitting it.
+   * 
+   * In the closed-loop mode, a message is sent as soon as a slot of the
+   * in-flight window is free, instead of on a schedule. The slot of a
+   * message that fails to send is freed straight away. While no slot
+   * frees up, the messages that are overdue are given up on, and their
+   * slots reclaimed, so messages the server never acknowledges cannot
+   * stop the client for good.
    */
   @Override
   public void run() {
+    final long interval = window != null ? 0
+        : TimeUnit.SECONDS.toNanos( 1 ) / messageRate;
+    long intended = System.nanoTime();
     while ( true )
     {
-      byte[] msg = new byte[ TransmissionUtilities.EIGHT_KB ];
-      ( new Random() ).nextBytes( msg );
-      sendingBuffer = ByteBuffer.wrap( msg );
-
-      String hash = TransmissionUtilities.SHA1FromBytes( msg );
-      synchronized ( hashes )
+      if ( window != null )
       {
-        hashes.add( hash );
+        try
+        {
+          while ( !window.tryAcquire( ClientStatistics.OVERDUE,
+              TimeUnit.NANOSECONDS ) )
+          {
+            reclaim();
+          }
+        } catch ( InterruptedException e )
+        {
+          LOG.error( "Interrupted waiting for an acknowledgement. "
+              + e.getMessage() );
+          return;
+        }
+        intended = System.nanoTime();
       }
+      sendingBuffer.clear();
+      TransmissionUtilities.randomize( sendingBuffer );
+
+      digest.clear();
+      HashEngine.get().digest( sendingBuffer, digest );
+      digest.flip();
+      sendingBuffer.rewind();
+      hashes.add( digest, intended );
       try
       {
-        channel.write( sendingBuffer );
+        while ( sendingBuffer.hasRemaining() )
+        {
+          channel.write( sendingBuffer );
+        }
         statistics.sent();
-        sendingBuffer.clear();
       } catch ( IOException e )
       {
         LOG.error( "Unable to send / receive message. " + e.getMessage() );
+        hashes.remove( digest );
+        if ( window != null )
+        {
+          window.release();
+        }
+      }
+      intended += interval;
+      long delay = intended - System.nanoTime();
+      if ( window != null || delay <= 0 )
+      {
+        continue;
       }
       try
       {
-        Thread.sleep( 1000 / messageRate );
+        TimeUnit.NANOSECONDS.sleep( delay );
       } catch ( InterruptedException e )
       {
         LOG.error( "Interrupted and unable to sleep between transmissions."
@@ -91,4 +152,18 @@ public class SenderThread implements Runnable {
       }
     }
   }
+
+  /**
+   * Give up on the overdue messages, and free their slots of the window.
+   *
+   */
+  private void reclaim() {
+    int expired =
+        hashes.expire( System.nanoTime(), ClientStatistics.OVERDUE );
+    if ( expired > 0 )
+    {
+      statistics.expired( expired );
+      window.release( expired );
+    }
+  }
 }
@@ -0,0 +1,150 @@
+package cs455.scaling.client;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import cs455.scaling.util.TransmissionUtilities;
+
+/**
+ * State of a single connection driven by the load generator. It is
+ * scheduled on the timing wheel of its reactor for the next message
+ * to send, or to check for a stalled window in the closed-loop mode,
+ * and is attached to its selection key.
+ *
+ * @author stock
+ *
+ */
+public class SimulatedClient extends TimingWheel.Timeout {
+
+  private final SocketChannel channel;
+
+  private final SelectionKey key;
+
+  private final AckDecoder decoder;
+
+  /**
+   * The part of the last message that could not be written, or
+   * <code>null</code> until a write has first been incomplete.
+   */
+  private ByteBuffer outbound;
+
+  /**
+   * Messages sent and not yet acknowledged, counted in the closed-loop
+   * mode.
+   */
+  private int inFlight = 0;
+
+  /**
+   * The time of the last acknowledgement, or of the last time the
+   * window was reclaimed, in the closed-loop mode.
+   */
+  private long acknowledgedAt;
+
+  /**
+   * Default constructor - associate the simulated client with its
+   * registered channel.
+   *
+   * @param channel
+   * @param key
+   * @param decoder for the acknowledgements of this client
+   */
+  public SimulatedClient(SocketChannel channel, SelectionKey key,
+      AckDecoder decoder) {
+    this.channel = channel;
+    this.key = key;
+    this.decoder = decoder;
+  }
+
+  /**
+   *
+   * @return the socket channel for this client
+   */
+  public SocketChannel channel() {
+    return channel;
+  }
+
+  /**
+   *
+   * @return the selection key of the channel
+   */
+  public SelectionKey key() {
+    return key;
+  }
+
+  /**
+   *
+   * @return the decoder for the acknowledgements of this client
+   */
+  public AckDecoder decoder() {
+    return decoder;
+  }
+
+  /**
+   *
+   * @return true while part of the last message is waiting to be
+   *         written
+   */
+  public boolean isWriting() {
+    return outbound != null && outbound.hasRemaining();
+  }
+
+  /**
+   * Keep the unwritten remainder of a message until the channel is
+   * writable again.
+   *
+   * @param remainder
+   */
+  public void defer(ByteBuffer remainder) {
+    if ( outbound == null )
+    {
+      outbound = ByteBuffer.allocate( TransmissionUtilities.EIGHT_KB );
+    }
+    outbound.clear();
+    outbound.put( remainder ).flip();
+  }
+
+  /**
+   *
+   * @return the number of messages in flight
+   */
+  public int inFlight() {
+    return inFlight;
+  }
+
+  /**
+   * Count a change in the number of messages in flight. The count never
+   * drops below zero, as messages that were given up on may still be
+   * acknowledged late.
+   *
+   * @param delta
+   */
+  public void addInFlight(int delta) {
+    inFlight = Math.max( inFlight + delta, 0 );
+  }
+
+  /**
+   *
+   * @return the time of the last acknowledgement, relative to
+   *         <code>System.nanoTime()</code>
+   */
+  public long acknowledgedAt() {
+    return acknowledgedAt;
+  }
+
+  /**
+   * Record the time of an acknowledgement.
+   *
+   * @param now the current value of <code>System.nanoTime()</code>
+   */
+  public void acknowledged(long now) {
+    acknowledgedAt = now;
+  }
+
+  /**
+   *
+   * @return the remainder of the last message, in read mode
+   */
+  public ByteBuffer outbound() {
+    return outbound;
+  }
+}
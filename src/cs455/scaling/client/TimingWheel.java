@@ -0,0 +1,145 @@
+package cs455.scaling.client;
+
+/**
+ * Hashed timing wheel that schedules timeouts to a resolution of one
+ * tick, independent of the number of timeouts scheduled.
+ *
+ * Every slot of the wheel holds a linked list of the timeouts whose
+ * deadline falls on a tick mapping to that slot; timeouts more than a
+ * full rotation away simply stay in their slot until their deadline
+ * is reached. The links are held by the timeouts themselves, so
+ * scheduling does not allocate.
+ *
+ * A wheel is not thread safe, and is owned by a single thread.
+ *
+ * @author stock
+ *
+ */
+public class TimingWheel {
+
+  /**
+   * An entry that can be scheduled on a timing wheel. An entry may only
+   * be scheduled once at a time.
+   */
+  public static class Timeout {
+
+    private long deadline;
+
+    private Timeout next;
+
+    /**
+     *
+     * @return the deadline the timeout was scheduled for, in
+     *         nanoseconds
+     */
+    public long deadline() {
+      return deadline;
+    }
+
+    /**
+     *
+     * @return the next timeout that expired with this one, or
+     *         <code>null</code>
+     */
+    public Timeout next() {
+      return next;
+    }
+  }
+
+  private final Timeout[] wheel;
+
+  private final int mask;
+
+  private final long tick;
+
+  /**
+   * The next tick to expire; every earlier tick has been processed.
+   */
+  private long current;
+
+  /**
+   * Default constructor - create an empty wheel.
+   *
+   * @param slots the number of slots, rounded up to a power of two
+   * @param tick nanoseconds per tick
+   * @param now the current value of <code>System.nanoTime()</code>
+   */
+  public TimingWheel(int slots, long tick, long now) {
+    int size = Integer.highestOneBit( Math.max( slots, 2 ) - 1 ) << 1;
+    this.wheel = new Timeout[ size ];
+    this.mask = size - 1;
+    this.tick = tick;
+    this.current = Math.floorDiv( now, tick );
+  }
+
+  /**
+   * Schedule a timeout for the given deadline. A deadline that has
+   * already passed expires on the next tick.
+   *
+   * @param timeout
+   * @param deadline in nanoseconds, relative to
+   *        <code>System.nanoTime()</code>
+   */
+  public void schedule(Timeout timeout, long deadline) {
+    timeout.deadline = deadline;
+    // The tick at or after the deadline, so it has passed when expired
+    long ticks = Math.max( -Math.floorDiv( -deadline, tick ), current );
+    int slot = ( int ) ( ticks & mask );
+    timeout.next = wheel[ slot ];
+    wheel[ slot ] = timeout;
+  }
+
+  /**
+   * Advance the wheel up to the current time, and remove every timeout
+   * that has reached its deadline.
+   *
+   * @param now the current value of <code>System.nanoTime()</code>
+   * @return the expired timeouts linked by {@link Timeout#next()}, or
+   *         <code>null</code>; read the link before scheduling the
+   *         timeout again
+   */
+  public Timeout expire(long now) {
+    Timeout expired = null;
+    long last = Math.floorDiv( now, tick );
+    // Each slot only needs to be visited once per call
+    long end = Math.min( last, current + mask );
+    for ( ; current <= end; ++current )
+    {
+      int slot = ( int ) ( current & mask );
+      Timeout previous = null;
+      Timeout timeout = wheel[ slot ];
+      while ( timeout != null )
+      {
+        Timeout next = timeout.next;
+        if ( timeout.deadline <= now )
+        {
+          if ( previous == null )
+          {
+            wheel[ slot ] = next;
+          } else
+          {
+            previous.next = next;
+          }
+          timeout.next = expired;
+          expired = timeout;
+        } else
+        {
+          previous = timeout;
+        }
+        timeout = next;
+      }
+    }
+    current = last + 1;
+    return expired;
+  }
+
+  /**
+   *
+   * @param now the current value of <code>System.nanoTime()</code>
+   * @return milliseconds until the next tick, at least one
+   */
+  public long untilNextTick(long now) {
+    long remaining = current * tick - now;
+    return Math.max( 1, ( remaining + 999999 ) / 1000000 );
+  }
+}
@@ -0,0 +1,167 @@
+package cs455.scaling.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free, multi-producer accumulator that groups received messages
+ * into batches.
+ *
+ * Messages are held in a bounded ring where every slot carries a
+ * sequence number, so producers and consumers coordinate with atomic
+ * operations instead of a shared monitor. A producer publishes its
+ * message into a slot, and the producer that completes a batch claims
+ * it. Messages that wait longer than the batch-time are claimed by
+ * {@link #expire(long)}.
+ *
+ * @author stock
+ *
+ */
+class BatchAccumulator {
+
+  private final int mask;
+
+  private final ByteBuffer[] payloads;
+
+  private final Connection[] connections;
+
+  private final int[] numbers;
+
+  private final long[] times;
+
+  /**
+   * The sequence of each slot; equal to the position when free for a
+   * producer, and one past the position when published for a consumer.
+   */
+  private final AtomicLongArray sequences;
+
+  private final AtomicLong enqueuePosition = new AtomicLong( 0 );
+
+  private final AtomicLong dequeuePosition = new AtomicLong( 0 );
+
+  /**
+   * Number of published messages that have not been claimed.
+   */
+  private final AtomicInteger pending = new AtomicInteger( 0 );
+
+  private final int batchSize;
+
+  private final long batchTime;
+
+  /**
+   * Default constructor - allocate the ring that holds the messages.
+   *
+   * @param batchSize the number of messages in a full batch
+   * @param batchTime the maximum time, in nanoseconds, a message may
+   *        wait before being sent
+   */
+  BatchAccumulator(int batchSize, long batchTime) {
+    int capacity =
+        Integer.highestOneBit( Math.max( 1024, batchSize * 4 ) - 1 ) << 1;
+    this.mask = capacity - 1;
+    this.payloads = new ByteBuffer[ capacity ];
+    this.connections = new Connection[ capacity ];
+    this.numbers = new int[ capacity ];
+    this.times = new long[ capacity ];
+    this.sequences = new AtomicLongArray( capacity );
+    for ( int i = 0; i < capacity; ++i )
+    {
+      sequences.set( i, i );
+    }
+    this.batchSize = batchSize;
+    this.batchTime = batchTime;
+  }
+
+  /**
+   * Publish a message to the accumulator. If the message completes a
+   * batch, the batch is claimed by the caller and must be collected with
+   * {@link #drain(ByteBuffer[], Connection[], int[], long[])}.
+   *
+   * @param payload
+   * @param connection
+   * @param sequence the sequence number of the message on the
+   *        connection
+   * @return the number of messages claimed, either zero or the batch
+   *         size
+   */
+  int add(ByteBuffer payload, Connection connection, int sequence) {
+    long position = enqueuePosition.getAndIncrement();
+    int index = ( int ) ( position & mask );
+    // The ring is full until the message a lap behind is drained
+    while ( sequences.get( index ) != position )
+    {
+      Thread.yield();
+    }
+    payloads[ index ] = payload;
+    connections[ index ] = connection;
+    numbers[ index ] = sequence;
+    times[ index ] = System.nanoTime();
+    sequences.set( index, position + 1 );
+
+    int count = pending.incrementAndGet();
+    while ( count >= batchSize )
+    {
+      if ( pending.compareAndSet( count, count - batchSize ) )
+      {
+        return batchSize;
+      }
+      count = pending.get();
+    }
+    return 0;
+  }
+
+  /**
+   * Claim every pending message if the oldest of them would exceed the
+   * batch-time before the next check.
+   *
+   * @param period nanoseconds until the next check
+   * @return the number of messages claimed
+   */
+  int expire(long period) {
+    long position = dequeuePosition.get();
+    int index = ( int ) ( position & mask );
+    if ( sequences.get( index ) != position + 1
+        || System.nanoTime() - times[ index ] + period < batchTime )
+    {
+      return 0;
+    }
+    return pending.getAndSet( 0 );
+  }
+
+  /**
+   * Collect claimed messages, in the order they were published, into
+   * the provided arrays. The length of the arrays must not exceed the
+   * number of messages claimed.
+   *
+   * @param payloads
+   * @param connections
+   * @param numbers the sequence numbers of the messages
+   * @param times the time each message was published, or
+   *        <code>null</code> if not needed
+   */
+  void drain(ByteBuffer[] payloads, Connection[] connections, int[] numbers,
+      long[] times) {
+    for ( int i = 0; i < payloads.length; ++i )
+    {
+      long position = dequeuePosition.getAndIncrement();
+      int index = ( int ) ( position & mask );
+      // A claimed message may still be in the middle of being published
+      while ( sequences.get( index ) != position + 1 )
+      {
+        Thread.yield();
+      }
+      payloads[ i ] = this.payloads[ index ];
+      connections[ i ] = this.connections[ index ];
+      numbers[ i ] = this.numbers[ index ];
+      if ( times != null )
+      {
+        times[ i ] = this.times[ index ];
+      }
+      this.payloads[ index ] = null;
+      this.connections[ index ] = null;
+      sequences.set( index, position + mask + 1 );
+    }
+  }
+}
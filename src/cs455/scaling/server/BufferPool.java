@@ -0,0 +1,121 @@
+package cs455.scaling.server;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of fixed size, direct byte buffers that are leased for
+ * receiving a message and released once the message has been
+ * acknowledged.
+ *
+ * Buffers are carved out of larger direct slabs. When no free buffer
+ * is available a new slab is allocated, and the pool grows to the
+ * peak number of messages in flight.
+ *
+ * @author stock
+ *
+ */
+public class BufferPool {
+
+  /**
+   * Number of buffers carved out of a single slab.
+   */
+  private static final int BUFFERS_PER_SLAB = 64;
+
+  private final int bufferSize;
+
+  private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+
+  private final LongAdder hits = new LongAdder();
+
+  private final LongAdder misses = new LongAdder();
+
+  private final LongAdder outstanding = new LongAdder();
+
+  /**
+   * Default constructor - no memory is allocated until the first
+   * buffer is leased.
+   *
+   * @param bufferSize the capacity of each leased buffer
+   */
+  public BufferPool(int bufferSize) {
+    this.bufferSize = bufferSize;
+  }
+
+  /**
+   * Lease a cleared buffer from the pool. It must be returned with
+   * {@link #release(ByteBuffer)} once it is no longer used.
+   *
+   * @return a direct buffer with a capacity of the buffer size
+   */
+  public ByteBuffer lease() {
+    ByteBuffer buffer = free.poll();
+    if ( buffer == null )
+    {
+      misses.increment();
+      buffer = allocateSlab();
+    } else
+    {
+      hits.increment();
+    }
+    outstanding.increment();
+    return buffer;
+  }
+
+  /**
+   * Return a previously leased buffer back to the pool.
+   *
+   * @param buffer
+   */
+  public void release(ByteBuffer buffer) {
+    buffer.clear();
+    outstanding.decrement();
+    free.offer( buffer );
+  }
+
+  /**
+   *
+   * @return the number of leases served from the free list since the
+   *         last call, resetting the count
+   */
+  public long hits() {
+    return hits.sumThenReset();
+  }
+
+  /**
+   *
+   * @return the number of leases that required a new slab since the
+   *         last call, resetting the count
+   */
+  public long misses() {
+    return misses.sumThenReset();
+  }
+
+  /**
+   *
+   * @return the number of buffers currently leased
+   */
+  public long outstanding() {
+    return outstanding.sum();
+  }
+
+  /**
+   * Allocate a new direct slab, slice it into buffers, and keep all but
+   * one for future leases.
+   *
+   * @return a buffer from the new slab
+   */
+  private ByteBuffer allocateSlab() {
+    ByteBuffer slab =
+        ByteBuffer.allocateDirect( bufferSize * BUFFERS_PER_SLAB );
+    for ( int i = 1; i < BUFFERS_PER_SLAB; ++i )
+    {
+      slab.limit( ( i + 1 ) * bufferSize ).position( i * bufferSize );
+      free.offer( slab.slice() );
+    }
+    slab.limit( bufferSize ).position( 0 );
+    return slab.slice();
+  }
+}
@@ -0,0 +1,480 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+import cs455.scaling.util.TransmissionUtilities;
+
+/**
+ * Per-connection context that is attached to the selection key of a
+ * client.
+ *
+ * The context holds the inbound buffers for the connection so that a
+ * partially received payload is kept across readiness events, and
+ * reading can resume where it left off. Outbound acknowledgements that
+ * could not be written immediately are buffered until the channel is
+ * writable again.
+ *
+ * Before the first message, the protocol is negotiated from an
+ * optional hello sent by the client.
+ *
+ * The context also holds the throughput counter of the connection, so
+ * counting acknowledged messages updates it directly instead of
+ * looking the client up, and the statistics walk the registered
+ * contexts.
+ *
+ * @author stock
+ *
+ */
+public class Connection {
+
+  /**
+   * Number of payloads that may be drained from the socket with a
+   * single scattering read.
+   */
+  private static final int READ_AHEAD = 4;
+
+  /**
+   * Buffered outbound bytes at which reading from the client pauses.
+   */
+  private static final int HIGH_WATERMARK =
+      Integer.getInteger( "cs455.scaling.outbound.high", 64 * 1024 );
+
+  /**
+   * Buffered outbound bytes at which reading from a paused client
+   * resumes.
+   */
+  private static final int LOW_WATERMARK =
+      Integer.getInteger( "cs455.scaling.outbound.low", 16 * 1024 );
+
+  private final SocketChannel channel;
+
+  /**
+   * The first buffer holds any partially received payload, followed by
+   * buffers to read ahead into.
+   */
+  private final ByteBuffer[] inbound = new ByteBuffer[ READ_AHEAD ];
+
+  private final Reactor reactor;
+
+  /**
+   * Receives the hello until the protocol is negotiated, then
+   * <code>null</code>.
+   */
+  private ByteBuffer hello =
+      ByteBuffer.allocate( TransmissionUtilities.HELLO_LENGTH );
+
+  /**
+   * The negotiated protocol options, or <code>-1</code> until the
+   * protocol has been negotiated.
+   */
+  private volatile int options = -1;
+
+  private int ackLength;
+
+  /**
+   * Sequence number of the next message received on this connection.
+   */
+  private int sequence = 0;
+
+  private final SelectionKey key;
+
+  /**
+   * Bytes waiting to be written to the client, kept in write mode.
+   */
+  private ByteBuffer outbound = ByteBuffer.allocate( 0 );
+
+  /**
+   * Set when the outbound bytes cross the high watermark, and cleared
+   * once they drain below the low watermark.
+   */
+  private volatile boolean paused = false;
+
+  private volatile long pausedAt;
+
+  /**
+   * Set by the reactor while a receiver is in flight for this
+   * connection.
+   */
+  private boolean reading = false;
+
+  /**
+   * Set by the reactor while reading is paused because the thread pool
+   * is overloaded.
+   */
+  private boolean throttled = false;
+
+  private final Throughput throughput;
+
+  /**
+   * Set once a write to the client has failed.
+   */
+  private final AtomicBoolean failed = new AtomicBoolean( false );
+
+  /**
+   * Set once the connection is no longer counted by its reactor.
+   */
+  private final AtomicBoolean closed = new AtomicBoolean( false );
+
+  /**
+   * Default constructor - associate the context with a client channel
+   * and the reactor it is registered with.
+   *
+   * @param channel
+   * @param reactor the reactor owning the key, or <code>null</code> for
+   *        a blocking channel
+   * @param key the key of the channel, or <code>null</code> for a
+   *        blocking channel
+   */
+  public Connection(SocketChannel channel, Reactor reactor,
+      SelectionKey key) {
+    this.channel = channel;
+    this.reactor = reactor;
+    this.key = key;
+    String name;
+    try
+    {
+      name = String.valueOf( channel.getRemoteAddress() );
+    } catch ( IOException e )
+    {
+      name = "unknown";
+    }
+    this.throughput = new Throughput( ServerStatistics.TIME_FRAME, name );
+  }
+
+  /**
+   *
+   * @return the socket channel for this connection
+   */
+  public SocketChannel channel() {
+    return channel;
+  }
+
+  /**
+   * Read the start of the stream to negotiate the protocol. A client
+   * that starts with the hello has its options applied, otherwise the
+   * bytes read belong to the first message of a client that expects hex
+   * acknowledgements, and are moved to the inbound buffers.
+   *
+   * @param pool to lease buffers from
+   * @return the number of bytes read, or <code>-1</code> if the client
+   *         has disconnected
+   * @throws IOException if the read fails, or the hello has options
+   *         that are not supported, in which case the client should be
+   *         closed
+   */
+  public int negotiate(BufferPool pool) throws IOException {
+    int bytesRead = channel.read( hello );
+    if ( bytesRead == -1 || hello.hasRemaining() )
+    {
+      return bytesRead;
+    }
+    hello.flip();
+    if ( hello.getLong() == TransmissionUtilities.HELLO )
+    {
+      int requested = hello.getInt();
+      if ( ( requested & ~( TransmissionUtilities.BINARY_ACKS
+          | TransmissionUtilities.SEQUENCE_NUMBERS ) ) != 0 )
+      {
+        throw new IOException(
+            "Unsupported protocol options: " + requested );
+      }
+      options = requested;
+    } else
+    {
+      hello.rewind();
+      lease( pool )[ 0 ].put( hello );
+      options = TransmissionUtilities.HEX_ACKS;
+    }
+    ackLength = TransmissionUtilities.ackLength( options );
+    hello = null;
+    return bytesRead;
+  }
+
+  /**
+   *
+   * @return true once the protocol has been negotiated
+   */
+  public boolean isNegotiated() {
+    return options >= 0;
+  }
+
+  /**
+   *
+   * @return the negotiated protocol options
+   */
+  public int options() {
+    return options;
+  }
+
+  /**
+   *
+   * @return the number of bytes of each acknowledgement
+   */
+  public int ackLength() {
+    return ackLength;
+  }
+
+  /**
+   * Only the receiver of this connection assigns sequence numbers, so
+   * they follow the order messages were received in.
+   *
+   * @return the sequence number for the next message received
+   */
+  public int nextSequence() {
+    return sequence++;
+  }
+
+  /**
+   * Lease buffers for any empty slot of the inbound buffers.
+   *
+   * @param pool to lease buffers from
+   * @return the inbound buffers, in the order they should be read into
+   */
+  public ByteBuffer[] lease(BufferPool pool) {
+    for ( int i = 0; i < inbound.length; ++i )
+    {
+      if ( inbound[ i ] == null )
+      {
+        inbound[ i ] = pool.lease();
+      }
+    }
+    return inbound;
+  }
+
+  /**
+   * Discard the first <code>complete</code> inbound buffers that have
+   * been handed off, and move the remaining buffers to the front.
+   *
+   * @param complete the number of full buffers that were handed off
+   */
+  public void advance(int complete) {
+    int remaining = inbound.length - complete;
+    System.arraycopy( inbound, complete, inbound, 0, remaining );
+    for ( int i = remaining; i < inbound.length; ++i )
+    {
+      inbound[ i ] = null;
+    }
+  }
+
+  /**
+   * Release the inbound buffers that have not received any data, so an
+   * idle connection only holds on to a partial payload.
+   *
+   * @param pool to release buffers to
+   */
+  public void trim(BufferPool pool) {
+    for ( int i = 0; i < inbound.length; ++i )
+    {
+      if ( inbound[ i ] != null && inbound[ i ].position() == 0 )
+      {
+        pool.release( inbound[ i ] );
+        inbound[ i ] = null;
+      }
+    }
+  }
+
+  /**
+   * Write acknowledgements to the client with a single gathering write.
+   * Any bytes that could not be written, or that must queue behind
+   * previously buffered bytes, are copied to the outbound buffer and
+   * the reactor is asked to flush it once the channel is writable.
+   *
+   * Reading from the client is paused when the buffered bytes cross
+   * the high watermark, so a client that stops reading cannot make the
+   * server buffer without bound.
+   *
+   * @param sources the buffers to write, in order
+   * @param length the number of buffers to write
+   * @throws IOException
+   */
+  public synchronized void write(ByteBuffer[] sources, int length)
+      throws IOException {
+    boolean pending = outbound.position() > 0;
+    if ( !pending )
+    {
+      channel.write( sources, 0, length );
+    }
+    for ( int i = 0; i < length; ++i )
+    {
+      if ( sources[ i ].hasRemaining() )
+      {
+        ensureOutbound( sources[ i ].remaining() );
+        outbound.put( sources[ i ] );
+      }
+    }
+    boolean request = !pending && outbound.position() > 0;
+    if ( !paused && outbound.position() >= HIGH_WATERMARK )
+    {
+      paused = true;
+      pausedAt = System.nanoTime();
+      request = true;
+    }
+    if ( request )
+    {
+      reactor.interestWrite( key );
+    }
+  }
+
+  /**
+   * Close the connection after a write to the client has failed. The
+   * reactor owning the key drops it, while a blocking channel is closed
+   * directly, which stops its receiver.
+   *
+   * @return true for the first failure only, so it is reported once
+   */
+  public boolean fail() {
+    if ( !failed.compareAndSet( false, true ) )
+    {
+      return false;
+    }
+    if ( reactor != null )
+    {
+      reactor.close( key );
+    } else
+    {
+      try
+      {
+        channel.close();
+      } catch ( IOException e )
+      {
+        // The receiver cleans up once its read fails
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Mark the connection as closed.
+   *
+   * @return true the first time only
+   */
+  boolean markClosed() {
+    return closed.compareAndSet( false, true );
+  }
+
+  /**
+   *
+   * @return true if a write to the client has failed
+   */
+  public boolean hasFailed() {
+    return failed.get();
+  }
+
+  /**
+   * Write as much of the outbound buffer as the channel accepts.
+   * Invoked by the reactor when the channel becomes writable. A paused
+   * connection is resumed once below the low watermark.
+   *
+   * @return true if all buffered bytes have been written
+   * @throws IOException
+   */
+  public synchronized boolean flush() throws IOException {
+    outbound.flip();
+    try
+    {
+      channel.write( outbound );
+    } finally
+    {
+      outbound.compact();
+    }
+    if ( paused && outbound.position() <= LOW_WATERMARK )
+    {
+      paused = false;
+    }
+    return outbound.position() == 0;
+  }
+
+  /**
+   *
+   * @return true if reading is paused until outbound bytes drain
+   */
+  boolean isPaused() {
+    return paused;
+  }
+
+  /**
+   *
+   * @param now the current value of <code>System.nanoTime()</code>
+   * @return nanoseconds the connection has been paused for, or zero
+   */
+  long pausedFor(long now) {
+    return paused ? now - pausedAt : 0;
+  }
+
+  /**
+   *
+   * @return the messages acknowledged on this connection
+   */
+  Throughput throughput() {
+    return throughput;
+  }
+
+  /**
+   *
+   * @return true if a receiver is in flight for this connection
+   */
+  boolean isReading() {
+    return reading;
+  }
+
+  /**
+   *
+   * @param reading whether a receiver is in flight for this connection
+   */
+  void setReading(boolean reading) {
+    this.reading = reading;
+  }
+
+  /**
+   *
+   * @return true if reading is paused for an overloaded thread pool
+   */
+  boolean isThrottled() {
+    return throttled;
+  }
+
+  /**
+   *
+   * @param throttled whether reading is paused for an overloaded thread
+   *        pool
+   */
+  void setThrottled(boolean throttled) {
+    this.throttled = throttled;
+  }
+
+  /**
+   * Grow the outbound buffer, if needed, to fit additional bytes.
+   *
+   * @param additional
+   */
+  private void ensureOutbound(int additional) {
+    if ( outbound.remaining() < additional )
+    {
+      int capacity = Math.max( outbound.capacity() * 2,
+          outbound.position() + additional );
+      ByteBuffer larger = ByteBuffer.allocate( capacity );
+      outbound.flip();
+      larger.put( outbound );
+      outbound = larger;
+    }
+  }
+
+  /**
+   * Release all inbound buffers when the connection is closed.
+   *
+   * @param pool to release buffers to
+   */
+  public void release(BufferPool pool) {
+    for ( int i = 0; i < inbound.length; ++i )
+    {
+      if ( inbound[ i ] != null )
+      {
+        pool.release( inbound[ i ] );
+        inbound[ i ] = null;
+      }
+    }
+  }
+}
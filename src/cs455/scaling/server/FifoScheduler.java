@@ -0,0 +1,65 @@
+package cs455.scaling.server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Predicate;
+import cs455.scaling.server.task.Task;
+
+/**
+ * Default scheduler where all worker threads take tasks off of one
+ * shared FIFO queue, implemented using a linked blocking queue.
+ * 
+ * @author stock
+ *
+ */
+class FifoScheduler implements Scheduler {
+
+  private final LinkedBlockingQueue<Task> queue =
+      new LinkedBlockingQueue<Task>();
+
+  /**
+   * Add the task to the tail of the queue.
+   */
+  @Override
+  public void put(Task task) throws InterruptedException {
+    queue.put( task );
+  }
+
+  /**
+   * Add the task to the tail of the queue if it has room. Offers are
+   * serialized so that concurrent reactors cannot both take the last
+   * place.
+   */
+  @Override
+  public synchronized boolean offer(Task task, int capacity) {
+    return queue.size() < capacity && queue.offer( task );
+  }
+
+  /**
+   * An available thread will take the item at the head of the queue.
+   */
+  @Override
+  public Task take(int worker) throws InterruptedException {
+    return queue.take();
+  }
+
+  @Override
+  public int size() {
+    return queue.size();
+  }
+
+  /**
+   * Search from the head of the queue, where the oldest tasks are.
+   */
+  @Override
+  public Task removeOldest(Predicate<Task> filter) {
+    for ( Task task : queue )
+    {
+      if ( filter.test( task ) && queue.remove( task ) )
+      {
+        return task;
+      }
+    }
+    return null;
+  }
+
+}
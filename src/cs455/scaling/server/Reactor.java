@@ -0,0 +1,626 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import cs455.scaling.server.task.Receiver;
+import cs455.scaling.server.task.Register;
+import cs455.scaling.util.Logger;
+
+/**
+ * A reactor owns exactly one selector and the thread that loops over
+ * it, dispatching readiness events to the thread pool.
+ *
+ * The server creates a group of reactors ( shards ). The first shard
+ * additionally accepts new connections, and every accepted client is
+ * handed to one of the shards so that readiness dispatch is spread
+ * across multiple cores.
+ *
+ * @author stock
+ *
+ */
+public class Reactor implements Runnable {
+
+  /**
+   * Have the ability to log output INFO, DEBUG, ERROR configured by
+   * Logger(INFO, DEBUG) and LOGGER#MASTER for ERROR settings.
+   */
+  private static final Logger LOG = new Logger( true, false );
+
+  /**
+   * Nanoseconds a connection may stay above the high watermark before
+   * it is dropped.
+   */
+  private static final long PAUSE_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(
+      Long.getLong( "cs455.scaling.outbound.timeout", 30000 ) );
+
+  /**
+   * Milliseconds between checks of paused connections.
+   */
+  private static final long SWEEP_MILLIS = 1000;
+
+  /**
+   * Milliseconds between checks of whether throttled connections can
+   * resume.
+   */
+  private static final long THROTTLE_MILLIS = 10;
+
+  private final Selector selector;
+
+  private final ThreadPoolManager threadPoolManager;
+
+  private final ServerStatistics statistics;
+
+  private final int identifier;
+
+  /**
+   * Clients that have been accepted by another thread, and are waiting
+   * to be registered with this selector by the reactor thread itself.
+   */
+  private final Queue<SocketChannel> pending = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Keys whose task has completed, and are waiting for their interest
+   * to be re-armed by the reactor thread.
+   */
+  private final Queue<SelectionKey> rearm = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Keys with buffered outbound data, waiting for write interest to be
+   * added by the reactor thread.
+   */
+  private final Queue<SelectionKey> writes = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Keys of connections that failed to be written to, waiting to be
+   * dropped by the reactor thread.
+   */
+  private final Queue<SelectionKey> closes = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Keys of connections that are paused above the high watermark. Only
+   * accessed by the reactor thread.
+   */
+  private final Set<SelectionKey> paused = new HashSet<>();
+
+  /**
+   * Keys of the noisiest connections, which are not read while the
+   * thread pool is overloaded, and keys whose task did not fit in the
+   * queue. Only accessed by the reactor thread.
+   */
+  private final Set<SelectionKey> throttled = new HashSet<>();
+
+  /**
+   * Number of connections registered with this reactor, read by the
+   * accepting thread as the selector's keys are not thread-safe.
+   */
+  private final AtomicInteger connections = new AtomicInteger( 0 );
+
+  private ReactorGroup group;
+
+  private volatile boolean running = true;
+
+  /**
+   * Default constructor - open a new selector that is owned by this
+   * reactor.
+   *
+   * @param threadPoolManager
+   * @param statistics
+   * @param identifier
+   * @throws IOException
+   */
+  Reactor(ThreadPoolManager threadPoolManager, ServerStatistics statistics,
+      int identifier) throws IOException {
+    this.selector = Selector.open();
+    this.threadPoolManager = threadPoolManager;
+    this.statistics = statistics;
+    this.identifier = identifier;
+  }
+
+  /**
+   * Have this reactor accept new connections on the server socket, and
+   * distribute them amongst the reactors of the group.
+   *
+   * @param serverSocket
+   * @param group
+   * @throws ClosedChannelException
+   */
+  void accept(ServerSocketChannel serverSocket, ReactorGroup group)
+      throws ClosedChannelException {
+    this.group = group;
+    serverSocket.register( selector, SelectionKey.OP_ACCEPT );
+  }
+
+  /**
+   * Queue a newly accepted client to be registered for reading with
+   * this reactor's selector. The registration itself is performed on
+   * the reactor thread.
+   *
+   * @param client
+   */
+  public void register(SocketChannel client) {
+    pending.add( client );
+    selector.wakeup();
+  }
+
+  /**
+   * Re-arm the interest of a key once the task that was handed out for
+   * it has completed. The interest set is modified on the reactor
+   * thread, which is woken up from the blocking select.
+   *
+   * @param key
+   */
+  public void rearm(SelectionKey key) {
+    rearm.add( key );
+    selector.wakeup();
+  }
+
+  /**
+   * Add write interest to a key whose connection has buffered outbound
+   * data. The buffered data is flushed by the reactor thread once the
+   * channel becomes writable.
+   *
+   * @param key
+   */
+  public void interestWrite(SelectionKey key) {
+    writes.add( key );
+    selector.wakeup();
+  }
+
+  /**
+   * Drop a connection that can no longer be written to. The connection
+   * is closed by the reactor thread, which is woken up from the blocking
+   * select.
+   *
+   * @param key
+   */
+  public void close(SelectionKey key) {
+    closes.add( key );
+    selector.wakeup();
+  }
+
+  /**
+   * Stop the reactor thread. Once it leaves the select loop, every
+   * channel registered with the selector is closed, along with the
+   * selector itself.
+   *
+   */
+  void stop() {
+    running = false;
+    selector.wakeup();
+  }
+
+  /**
+   * Stop counting a connection of this reactor once it is closed. Safe
+   * to call more than once for the same connection.
+   *
+   * @param connection
+   */
+  public void closed(Connection connection) {
+    if ( connection.markClosed() )
+    {
+      connections.decrementAndGet();
+    }
+  }
+
+  /**
+   *
+   * @return the number of clients registered with, or waiting to be
+   *         registered with, this reactor
+   */
+  int load() {
+    return connections.get() + pending.size();
+  }
+
+  /**
+   * Continuously run accepting new connections, and reading messages.
+   * These actions are managed by the thread pool.
+   *
+   */
+  @Override
+  public void run() {
+    try
+    {
+      process();
+    } catch ( IOException | InterruptedException e )
+    {
+      LOG.error( "Reactor " + Integer.toString( identifier )
+          + " failed to receive messages. Exiting with error: "
+          + e.getMessage() );
+    }
+  }
+
+  /**
+   * Block on the selector for ready keys, and delegate the accepting
+   * and reading of data to the thread pool.
+   *
+   * The interest of a key is cleared while its task is in flight, so
+   * the same readiness is never handed out twice, and is re-armed via
+   * {@link #rearm(SelectionKey)} when the task completes. The time from
+   * the selector waking up to each task being handed out is recorded as
+   * the dispatch stage.
+   *
+   * While the thread pool is overloaded, new connections may be
+   * rejected, and the noisiest connections may stop being read, as
+   * configured by the overload policies of the thread pool manager. A
+   * task that does not fit in the queue is deferred; the interest of
+   * its key stays cleared until the thread pool has recovered.
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  private void process() throws IOException, InterruptedException {
+    while ( running )
+    {
+      registerPending();
+      closeFailed();
+      rearmCompleted();
+      interestWrites();
+      resumeThrottled();
+      if ( !throttled.isEmpty() )
+      {
+        selector.select( THROTTLE_MILLIS );
+      } else if ( paused.isEmpty() )
+      {
+        selector.select();
+      } else
+      {
+        selector.select( SWEEP_MILLIS );
+      }
+      long selected = StageLatency.now();
+      Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+      while ( iter.hasNext() )
+      {
+
+        SelectionKey key = iter.next();
+        iter.remove();
+
+        if ( !key.isValid() )
+        {
+          continue;
+        }
+        if ( key.isAcceptable() )
+        {
+          if ( threadPoolManager.rejectsAccepts()
+              && threadPoolManager.isOverloaded() )
+          {
+            reject( key );
+            continue;
+          }
+          key.interestOps( key.interestOps() & ~SelectionKey.OP_ACCEPT );
+          if ( !threadPoolManager.offerTask( new Register( this, key,
+              group.next(), threadPoolManager, statistics ) ) )
+          {
+            defer( key );
+            continue;
+          }
+          statistics.stages().record( StageLatency.DISPATCH, selected );
+          continue;
+        }
+
+        Connection connection = ( Connection ) key.attachment();
+        if ( key.isWritable() )
+        {
+          flush( key, connection );
+        }
+        if ( key.isValid() && key.isReadable() )
+        {
+          if ( threadPoolManager.pausesReads()
+              && threadPoolManager.isOverloaded()
+              && statistics.isNoisy( connection ) )
+          {
+            throttle( key, connection );
+            continue;
+          }
+          connection.setReading( true );
+          updateRead( key, connection );
+          if ( !threadPoolManager.offerTask(
+              new Receiver( threadPoolManager, this, statistics, key ) ) )
+          {
+            connection.setReading( false );
+            defer( key );
+            continue;
+          }
+          statistics.stages().record( StageLatency.DISPATCH, selected );
+        }
+      }
+      sweep();
+    }
+    for ( SelectionKey key : selector.keys() )
+    {
+      key.channel().close();
+    }
+    selector.close();
+  }
+
+  /**
+   * Restore the interest of keys that have completed their task since
+   * the last iteration. A connection that was dropped while its
+   * receiver was in flight has its inbound buffers released here, as
+   * {@link #drop(SelectionKey, Connection)} left them to the receiver.
+   *
+   */
+  private void rearmCompleted() {
+    SelectionKey key;
+    while ( ( key = rearm.poll() ) != null )
+    {
+      if ( !key.isValid() )
+      {
+        if ( key.attachment() instanceof Connection )
+        {
+          Connection connection = ( Connection ) key.attachment();
+          connection.setReading( false );
+          connection.release( threadPoolManager.getBufferPool() );
+        }
+        continue;
+      }
+      if ( key.channel() instanceof ServerSocketChannel )
+      {
+        key.interestOps( key.interestOps() | SelectionKey.OP_ACCEPT );
+      } else
+      {
+        Connection connection = ( Connection ) key.attachment();
+        connection.setReading( false );
+        updateRead( key, connection );
+      }
+    }
+  }
+
+  /**
+   * Drop the connections that failed to be written to since the last
+   * iteration.
+   *
+   */
+  private void closeFailed() {
+    SelectionKey key;
+    while ( ( key = closes.poll() ) != null )
+    {
+      if ( key.isValid() )
+      {
+        LOG.debug( "Dropping a client that could not be written to." );
+        drop( key, ( Connection ) key.attachment() );
+      }
+    }
+  }
+
+  /**
+   * Add write interest to the keys that have buffered outbound data
+   * since the last iteration, and pause reading from any connection
+   * that has crossed the high watermark.
+   *
+   */
+  private void interestWrites() {
+    SelectionKey key;
+    while ( ( key = writes.poll() ) != null )
+    {
+      if ( key.isValid() )
+      {
+        key.interestOps( key.interestOps() | SelectionKey.OP_WRITE );
+        Connection connection = ( Connection ) key.attachment();
+        if ( connection.isPaused() && paused.add( key ) )
+        {
+          LOG.debug( "Pausing reads from a slow client." );
+        }
+        updateRead( key, connection );
+      }
+    }
+  }
+
+  /**
+   * Flush the outbound data of a writable connection, and remove the
+   * write interest once everything has been written. Reading resumes
+   * once a paused connection has drained below the low watermark.
+   *
+   * @param key
+   * @param connection
+   */
+  private void flush(SelectionKey key, Connection connection) {
+    try
+    {
+      if ( connection.flush() )
+      {
+        key.interestOps( key.interestOps() & ~SelectionKey.OP_WRITE );
+      }
+      if ( !connection.isPaused() && paused.remove( key ) )
+      {
+        LOG.debug( "Resuming reads from a client." );
+      }
+      updateRead( key, connection );
+    } catch ( IOException e )
+    {
+      LOG.error( "Unable to flush to client: " + e.getMessage()
+          + ", deregistering client." );
+      drop( key, connection );
+    }
+  }
+
+  /**
+   * Accept a new connection and close it straight away, rather than
+   * registering it with an overloaded thread pool.
+   *
+   * @param key of the server socket
+   */
+  private void reject(SelectionKey key) {
+    try
+    {
+      SocketChannel client = ( ( ServerSocketChannel ) key.channel() ).accept();
+      if ( client != null )
+      {
+        client.close();
+        statistics.rejected();
+      }
+    } catch ( IOException e )
+    {
+      LOG.error( "Unable to reject client: " + e.getMessage() );
+    }
+  }
+
+  /**
+   * Stop reading from a connection until the thread pool is no longer
+   * overloaded. The unread data is left in the socket.
+   *
+   * @param key
+   * @param connection
+   */
+  private void throttle(SelectionKey key, Connection connection) {
+    connection.setThrottled( true );
+    updateRead( key, connection );
+    if ( throttled.add( key ) )
+    {
+      statistics.throttled();
+    }
+  }
+
+  /**
+   * Keep the interest of a key cleared after its task was refused by a
+   * full queue, until the thread pool has recovered.
+   *
+   * @param key
+   */
+  private void defer(SelectionKey key) {
+    if ( !( key.channel() instanceof ServerSocketChannel ) )
+    {
+      Connection connection = ( Connection ) key.attachment();
+      connection.setThrottled( true );
+      updateRead( key, connection );
+    }
+    throttled.add( key );
+    statistics.deferred();
+  }
+
+  /**
+   * Resume reading from every throttled connection, and accepting if it
+   * was deferred, once the thread pool has recovered.
+   *
+   */
+  private void resumeThrottled() {
+    if ( throttled.isEmpty() || threadPoolManager.isOverloaded() )
+    {
+      return;
+    }
+    for ( SelectionKey key : throttled )
+    {
+      if ( !key.isValid() )
+      {
+        continue;
+      }
+      if ( key.channel() instanceof ServerSocketChannel )
+      {
+        key.interestOps( key.interestOps() | SelectionKey.OP_ACCEPT );
+      } else
+      {
+        Connection connection = ( Connection ) key.attachment();
+        connection.setThrottled( false );
+        updateRead( key, connection );
+      }
+    }
+    throttled.clear();
+  }
+
+  /**
+   * Read interest is only set while no receiver is in flight, and the
+   * connection is not paused or throttled.
+   *
+   * @param key
+   * @param connection
+   */
+  private void updateRead(SelectionKey key, Connection connection) {
+    if ( connection.isReading() || connection.isPaused()
+        || connection.isThrottled() )
+    {
+      key.interestOps( key.interestOps() & ~SelectionKey.OP_READ );
+    } else
+    {
+      key.interestOps( key.interestOps() | SelectionKey.OP_READ );
+    }
+  }
+
+  /**
+   * Drop the connections that have stayed above the high watermark for
+   * longer than the timeout.
+   *
+   */
+  private void sweep() {
+    if ( paused.isEmpty() )
+    {
+      return;
+    }
+    long now = System.nanoTime();
+    Iterator<SelectionKey> iter = paused.iterator();
+    while ( iter.hasNext() )
+    {
+      SelectionKey key = iter.next();
+      Connection connection = ( Connection ) key.attachment();
+      if ( !key.isValid() )
+      {
+        iter.remove();
+      } else if ( connection.pausedFor( now ) > PAUSE_TIMEOUT )
+      {
+        LOG.info( "Dropping a client that has stopped reading for over "
+            + TimeUnit.NANOSECONDS.toMillis( PAUSE_TIMEOUT ) + " ms." );
+        iter.remove();
+        drop( key, connection );
+      }
+    }
+  }
+
+  /**
+   * Close a connection from the reactor thread. The inbound buffers are
+   * released by the receiver instead, if one is in flight.
+   *
+   * @param key
+   * @param connection
+   */
+  private void drop(SelectionKey key, Connection connection) {
+    paused.remove( key );
+    throttled.remove( key );
+    statistics.deregister( connection );
+    closed( connection );
+    if ( !connection.isReading() )
+    {
+      connection.release( threadPoolManager.getBufferPool() );
+    }
+    key.cancel();
+    try
+    {
+      connection.channel().close();
+    } catch ( IOException e )
+    {
+      LOG.error( "Unable to close client connection: " + e.getMessage() );
+    }
+  }
+
+  /**
+   * Register any clients that were handed to this reactor since the
+   * last iteration.
+   *
+   */
+  private void registerPending() {
+    SocketChannel client;
+    while ( ( client = pending.poll() ) != null )
+    {
+      try
+      {
+        SelectionKey key = client.register( selector, SelectionKey.OP_READ );
+        Connection connection = new Connection( client, this, key );
+        key.attach( connection );
+        connections.incrementAndGet();
+        statistics.register( connection );
+      } catch ( ClosedChannelException e )
+      {
+        LOG.error( "Unable to register client with reactor "
+            + Integer.toString( identifier ) + ": " + e.getMessage() );
+      }
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package cs455.scaling.server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A group of reactors ( selector shards ) that client connections are
+ * distributed over.
+ *
+ * Clients are assigned round-robin, unless a shard is carrying fewer
+ * connections than the next in line, in which case the least-loaded
+ * shard is chosen.
+ *
+ * @author stock
+ *
+ */
+class ReactorGroup {
+
+  private final Reactor[] reactors;
+
+  private final Thread[] threads;
+
+  private final AtomicInteger next = new AtomicInteger( 0 );
+
+  /**
+   * Default constructor - create the specified number of reactors, each
+   * with their own selector.
+   *
+   * @param numberOfReactors
+   * @param threadPoolManager
+   * @param statistics
+   * @throws IOException
+   */
+  ReactorGroup(int numberOfReactors, ThreadPoolManager threadPoolManager,
+      ServerStatistics statistics) throws IOException {
+    this.reactors = new Reactor[ numberOfReactors ];
+    this.threads = new Thread[ numberOfReactors ];
+    for ( int i = 0; i < numberOfReactors; ++i )
+    {
+      reactors[ i ] = new Reactor( threadPoolManager, statistics, i );
+      threads[ i ] = new Thread( reactors[ i ], "reactor-" + i );
+    }
+  }
+
+  /**
+   * Register the server socket with the first reactor, and start all of
+   * the reactor threads.
+   *
+   * @param serverSocket
+   * @throws IOException
+   */
+  void start(ServerSocketChannel serverSocket) throws IOException {
+    reactors[ 0 ].accept( serverSocket, this );
+    for ( int i = 0; i < threads.length; ++i )
+    {
+      threads[ i ].start();
+    }
+  }
+
+  /**
+   * Wait for the reactor threads to exit.
+   *
+   * @throws InterruptedException
+   */
+  void join() throws InterruptedException {
+    for ( int i = 0; i < threads.length; ++i )
+    {
+      threads[ i ].join();
+    }
+  }
+
+  /**
+   * Stop every reactor, and wait for their threads to exit.
+   *
+   * @throws InterruptedException
+   */
+  void stop() throws InterruptedException {
+    for ( Reactor reactor : reactors )
+    {
+      reactor.stop();
+    }
+    join();
+  }
+
+  /**
+   * Choose the reactor that a newly accepted client should be
+   * registered with.
+   *
+   * @return the next reactor in the group
+   */
+  Reactor next() {
+    Reactor candidate =
+        reactors[ Math.floorMod( next.getAndIncrement(), reactors.length ) ];
+    for ( Reactor reactor : reactors )
+    {
+      if ( reactor.load() < candidate.load() )
+      {
+        candidate = reactor;
+      }
+    }
+    return candidate;
+  }
+}
@@ -0,0 +1,58 @@
+package cs455.scaling.server;
+
+import java.util.function.Predicate;
+import cs455.scaling.server.task.Task;
+
+/**
+ * Scheduling policy that hands the tasks of the thread pool manager
+ * to the worker threads.
+ * 
+ * @author stock
+ *
+ */
+interface Scheduler {
+
+  /**
+   * Make a task available to the worker threads.
+   * 
+   * @param task
+   * @throws InterruptedException
+   */
+  void put(Task task) throws InterruptedException;
+
+  /**
+   * Make a task available to the worker threads, unless the capacity
+   * has been reached. Only callers of this method are held to the
+   * capacity; tasks added with {@link #put(Task)} may exceed it.
+   * 
+   * @param task
+   * @param capacity the most tasks that may be waiting
+   * @return false if the task was not added
+   */
+  boolean offer(Task task, int capacity);
+
+  /**
+   * Wait for, and remove, the next task for a given worker.
+   * 
+   * @param worker the identifier of the calling worker thread
+   * @return the next task to process
+   * @throws InterruptedException
+   */
+  Task take(int worker) throws InterruptedException;
+
+  /**
+   *
+   * @return the number of tasks waiting for a worker
+   */
+  int size();
+
+  /**
+   * Remove the oldest waiting task that matches a filter, so that it is
+   * never processed.
+   *
+   * @param filter
+   * @return the removed task, or <code>null</code> if none matched
+   */
+  Task removeOldest(Predicate<Task> filter);
+
+}
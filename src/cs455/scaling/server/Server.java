@@ -3,15 +3,11 @@ package cs455.scaling.server;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.util.Date;
-import java.util.Iterator;
 import java.util.Timer;
-import cs455.scaling.server.task.Receiver;
-import cs455.scaling.server.task.Register;
 import cs455.scaling.util.Logger;
+import cs455.scaling.util.TransmissionUtilities;
 
 /**
  * Only one server node in the system to manage incoming connections /
@@ -44,34 +40,44 @@ class Server {
 
   private final ServerStatistics statistics;
 
+  private final int numberOfReactors;
+
+  private ReactorGroup reactors;
+
   /**
    * Entry point for the server, specifying the configuration via the
    * command arguments.
    * 
    * @param args command line arguments include; port-number,
-   *        tread-pool-size, batch-size, and batch-time
+   *        tread-pool-size, batch-size, batch-time, and optionally the
+   *        number of reactor ( selector ) threads
    */
   public static void main(String[] args) {
     if ( args.length < 4 )
     {
-      LOG.error( "USAGE: port-numumber tread-pool-size batch-size batch-time" );
+      LOG.error(
+          "USAGE: port-numumber tread-pool-size batch-size batch-time [reactors]" );
       return;
     }
     LOG.info( "Server starting up at: " + new Date() );
 
-    int[] arguments = new int[ 4 ];
-    for ( int i = 0; i < 4; ++i )
+    int[] arguments = new int[ 5 ];
+    arguments[ 4 ] = 1;
+    for ( int i = 0; i < Math.min( args.length, arguments.length ); ++i )
     {
       arguments[ i ] = Integer.parseInt( args[ i ] );
     }
+    if ( arguments[ 4 ] < 1 )
+    {
+      LOG.error( "The number of reactors must be greater than zero." );
+      return;
+    }
 
     Server server = new Server( arguments );
 
-    server.threadPoolManager.start();
-
     Timer timer = new Timer();
-    final int interval = 20000; // 20 seconds in milliseconds
-    timer.schedule( server.statistics, 1000, interval );
+    final int interval = 1000; // sampled every second, printed every 20
+    timer.scheduleAtFixedRate( server.statistics, 1000, interval );
 
     try
     {
@@ -89,35 +95,37 @@ class Server {
    * 
    * @param arguments
    */
-  private Server(int[] arguments) {
-    this.statistics = new ServerStatistics();
-    this.threadPoolManager = new ThreadPoolManager( arguments, statistics );
+  Server(int[] arguments) {
+    BufferPool pool = new BufferPool( TransmissionUtilities.EIGHT_KB );
+    this.statistics = new ServerStatistics( pool );
+    this.threadPoolManager =
+        new ThreadPoolManager( arguments, statistics, pool );
+    this.numberOfReactors = arguments[ 4 ];
   }
 
   /**
    * Once the server object is configured, it can set up a new server
    * socket channel, and begin accepting new connections.
    * 
+   * Accepted clients are distributed amongst a group of reactors, each
+   * owning their own selector and thread.
+   * 
    * @param port specifies the port to which the server socket channel
    *        will be listening.
    * @throws IOException
    */
   private void start(int port) throws IOException {
-    Selector selector = Selector.open();
     String host = InetAddress.getLocalHost().getHostName();
 
     LOG.info( "Server starting on host: " + host + ", port: "
-        + Integer.toString( port ) );
+        + Integer.toString( port ) + ", reactors: "
+        + Integer.toString( numberOfReactors ) );
 
-    ServerSocketChannel serverSocket = ServerSocketChannel.open();
-    serverSocket.bind( new InetSocketAddress( host, port ) );
-    serverSocket.configureBlocking( false );
-
-    serverSocket.register( selector, SelectionKey.OP_ACCEPT );
+    listen( new InetSocketAddress( host, port ) );
 
     try
     {
-      process( selector, serverSocket );
+      reactors.join();
     } catch ( InterruptedException e )
     {
       LOG.error( "Failed to receive messages. Exiting application with error: "
@@ -127,39 +135,36 @@ class Server {
   }
 
   /**
-   * This method will continuously run accepting new connections, and
-   * reading messages. These actions are managed by the thread pool.
+   * Start the thread pool, bind the server socket, and start the
+   * reactors accepting connections on it. Returns without waiting for
+   * the reactors.
    * 
-   * @param selector
-   * @param serverSocket
+   * @param address to bind the server socket to, which may have an
+   *        ephemeral port
+   * @return the address the server socket is bound to
    * @throws IOException
+   */
+  InetSocketAddress listen(InetSocketAddress address) throws IOException {
+    threadPoolManager.start();
+
+    ServerSocketChannel serverSocket = ServerSocketChannel.open();
+    serverSocket.bind( address );
+    serverSocket.configureBlocking( false );
+
+    reactors =
+        new ReactorGroup( numberOfReactors, threadPoolManager, statistics );
+    reactors.start( serverSocket );
+    return ( InetSocketAddress ) serverSocket.getLocalAddress();
+  }
+
+  /**
+   * Stop a listening server; the reactors close every connection and
+   * the server socket, and the thread pool is shut down.
+   * 
    * @throws InterruptedException
    */
-  private void process(Selector selector, ServerSocketChannel serverSocket)
-      throws IOException, InterruptedException {
-    while ( true )
-    {
-      selector.selectNow();
-      Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
-      while ( iter.hasNext() )
-      {
-
-        SelectionKey key = iter.next();
-
-        if ( key.isAcceptable() && key.attachment() == null )
-        {
-          key.attach( statistics );
-          threadPoolManager
-              .addTask( new Register( selector, serverSocket, key ) );
-        }
-
-        else if ( key.isReadable() && key.attachment() == null )
-        {
-          key.attach( statistics );
-          threadPoolManager.addTask( new Receiver( threadPoolManager, key ) );
-        }
-        iter.remove();
-      }
-    }
+  void stop() throws InterruptedException {
+    reactors.stop();
+    threadPoolManager.shutdown();
   }
 }
@@ -1,18 +1,37 @@
 package cs455.scaling.server;
 
-import java.nio.channels.SocketChannel;
 import java.sql.Timestamp;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Set;
 import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
 import java.util.concurrent.atomic.LongAdder;
 import cs455.scaling.util.Logger;
 
 /**
  * Server statistics for managing clients and throughput.
  * 
+ * Every client {@link Connection} holds a {@link Throughput} with a
+ * ring of per-second buckets, which is sampled once a second by walking
+ * the registered connections. Every 20 seconds the server
+ * throughput is reported over sliding windows, along with percentiles
+ * of the per-client throughput and the heaviest clients. Neither the
+ * sampling nor the report allocates per client, and messages are
+ * counted without blocking.
+ * 
+ * The windows are configured in seconds by the
+ * <code>cs455.scaling.stats.windows</code> system property ( default
+ * <code>1,10,60</code> ), and the number of heaviest clients by
+ * <code>cs455.scaling.stats.top</code> ( default 3 ).
+ * 
+ * The latency of every stage of the pipeline is reported on a line of
+ * its own, unless disabled, see {@link StageLatency}. A last line
+ * reports the overload events of the thread pool.
+ * 
  * @author stock
  *
  */
@@ -24,32 +43,107 @@ public class ServerStatistics extends TimerTask {
    */
   private static final Logger LOG = new Logger( true, false );
 
-  private static final double TIME_FRAME = 20.0;
+  /**
+   * Seconds between reports, which is also the window of the per-client
+   * statistics, and the length of their rings of buckets.
+   */
+  static final int TIME_FRAME = 20;
+
+  private static final int[] WINDOWS =
+      parseWindows( System.getProperty( "cs455.scaling.stats.windows",
+          "1,10,60" ) );
+
+  private static final int TOP =
+      Math.max( Integer.getInteger( "cs455.scaling.stats.top", 3 ), 0 );
+
+  /**
+   * Length of the ring of buckets of the server, enough for every
+   * window.
+   */
+  private static final int LONGEST =
+      Math.max( TIME_FRAME, WINDOWS[ WINDOWS.length - 1 ] );
+
+  /**
+   * The active client connections, each holding the number of messages
+   * it has sent.
+   * 
+   */
+  private final Set<Connection> connections =
+      ConcurrentHashMap.newKeySet();
+
+  private final Throughput server = new Throughput( LONGEST, "server" );
+
+  private final BufferPool pool;
+
+  private final StageLatency stages = new StageLatency();
+
+  private final LongAdder overloads = new LongAdder();
+
+  private final LongAccumulator maxQueued =
+      new LongAccumulator( Math::max, 0 );
+
+  private final LongAdder throttled = new LongAdder();
+
+  private final LongAdder rejected = new LongAdder();
+
+  private final LongAdder deferred = new LongAdder();
+
+  private final LongAdder shedBatches = new LongAdder();
+
+  private final LongAdder shedMessages = new LongAdder();
+
+  /**
+   * Mean messages per client in the last second, which the noisiest
+   * clients are at or above.
+   */
+  private volatile double meanRecent = 0;
+
+  private long seconds = 0;
 
   /**
-   * Maintain a map of active clients, and the number of messages each
-   * have sent.
+   * Per-client throughput of the last report, grown as clients are
+   * added.
+   */
+  private double[] rates = new double[ 64 ];
+
+  private final Throughput[] heaviest = new Throughput[ TOP ];
+
+  private final double[] heaviestRates = new double[ TOP ];
+
+  /**
+   * Default constructor - hold a reference to the buffer pool to report
+   * its usage alongside throughput.
    * 
+   * @param pool
+   */
+  public ServerStatistics(BufferPool pool) {
+    this.pool = pool;
+  }
+
+  /**
+   *
+   * @return the latency of every stage of the pipeline
    */
-  private final ConcurrentHashMap<SocketChannel, LongAdder> map =
-      new ConcurrentHashMap<>();
+  public StageLatency stages() {
+    return stages;
+  }
 
   /**
-   * Add clients to a map for holding statistics.
+   * Add a client connection to the statistics.
    * 
-   * @param client
+   * @param connection
    */
-  public void register(SocketChannel client) {
-    map.put( client, new LongAdder() );
+  public void register(Connection connection) {
+    connections.add( connection );
   }
 
   /**
-   * When a client disconnects it is removed from the map of statistics.
+   * When a client disconnects it is removed from the statistics.
    * 
-   * @param client
+   * @param connection
    */
-  public void deregister(SocketChannel client) {
-    if ( map.remove( client ) != null )
+  public void deregister(Connection connection) {
+    if ( connections.remove( connection ) )
     {
       LOG.debug( "Client was successfully removed from statistics" );
     }
@@ -58,12 +152,106 @@ public class ServerStatistics extends TimerTask {
   /**
    * Increment the value sent from a specific client.
    * 
-   * @param client
+   * @param connection
+   */
+  public void increment(Connection connection) {
+    increment( connection, 1 );
+  }
+
+  /**
+   * Increment the value sent from a specific client by a number of
+   * messages. The counter is held by the connection, so no lookup is
+   * needed.
+   * 
+   * @param connection
+   * @param messages
+   */
+  public void increment(Connection connection, int messages) {
+    server.add( messages );
+    connection.throughput().add( messages );
+  }
+
+  /**
+   * Record the number of tasks waiting for a worker.
+   * 
+   * @param size
+   */
+  public void queued(int size) {
+    maxQueued.accumulate( size );
+  }
+
+  /**
+   * Count the thread pool becoming overloaded.
+   * 
+   */
+  public void overloaded() {
+    overloads.increment();
+  }
+
+  /**
+   * Count a client that stopped being read while overloaded.
+   * 
+   */
+  public void throttled() {
+    throttled.increment();
+  }
+
+  /**
+   * Count a connection that was rejected while overloaded.
+   * 
    */
-  public void increment(SocketChannel client) {
-    map.computeIfAbsent( client, (v) -> new LongAdder() ).increment();
+  public void rejected() {
+    rejected.increment();
   }
 
+  /**
+   * Count a task that did not fit in the queue, and was deferred until
+   * the thread pool recovered.
+   * 
+   */
+  public void deferred() {
+    deferred.increment();
+  }
+
+  /**
+   * Count a batch that was dropped while overloaded.
+   * 
+   * @param messages in the batch
+   */
+  public void shed(int messages) {
+    shedBatches.increment();
+    shedMessages.add( messages );
+  }
+
+  /**
+   * 
+   * @param connection
+   * @return true if the client sent at least the mean number of
+   *         messages per client in the last second
+   */
+  public boolean isNoisy(Connection connection) {
+    return connection.throughput().recent() >= meanRecent;
+  }
+
+  /**
+   * Sample the throughput of the server and every client, scheduled
+   * once a second, and display the statistics every 20 seconds.
+   * 
+   */
+  @Override
+  public void run() {
+    server.sample();
+    for ( Connection connection : connections )
+    {
+      connection.throughput().sample();
+    }
+    int clients = connections.size();
+    meanRecent = clients == 0 ? 0 : ( double ) server.recent() / clients;
+    if ( seconds++ % TIME_FRAME == 0 )
+    {
+      report();
+    }
+  }
 
   /**
    * Display the statistics for the current running server.
@@ -75,50 +263,200 @@ public class ServerStatistics extends TimerTask {
    * <li>Active Client Connections</li>
    * <li>Mean Per-client Throughput</li>
    * <li>Std. Dev. of Per-client Throughput</li>
+   * <li>Buffer Pool Hits, Misses and Outstanding Leases</li>
+   * <li>Server Throughput over each sliding window</li>
+   * <li>Percentiles of the Per-client Throughput</li>
+   * <li>The heaviest clients</li>
+   * <li>Percentiles of the latency of every stage</li>
+   * <li>Overload events, the most tasks waiting, and the clients
+   * throttled, tasks deferred, connections rejected and batches
+   * shed</li>
    * </ul>
    * 
    */
-  @Override
-  public void run() {
+  private void report() {
     String timestamp =
         String.format( "%1$TF %1$TT", new Timestamp( new Date().getTime() ) );
 
-    synchronized ( map )
+    int activeClients = collect();
+    double mean = 0;
+    double std = 0;
+    if ( activeClients > 0 )
     {
-      double totalPerSecond =
-          map.values().stream().mapToInt( i -> i.intValue() ).sum()
-              / TIME_FRAME;
+      double sum = 0;
+      for ( int i = 0; i < activeClients; ++i )
+      {
+        sum += rates[ i ];
+      }
+      mean = sum / activeClients;
+      double squares = 0;
+      for ( int i = 0; i < activeClients; ++i )
+      {
+        squares += Math.pow( rates[ i ] - mean, 2 );
+      }
+      std = Math.sqrt( squares / activeClients );
+    }
+    NumberFormat formatter = new DecimalFormat( "#0.000" );
 
-      double activeClients = map.size();
+    System.out.println( "[" + timestamp + "]" + " Server Throughput: "
+        + formatter.format( server.rate( TIME_FRAME ) )
+        + " message(s), Active Client Connections: " + activeClients
+        + ", Mean Per-client Throughput: " + formatter.format( mean )
+        + " message(s), Std. Dev. Of Per-client Throughput: "
+        + formatter.format( std ) + ", Buffer Pool Hits: " + pool.hits()
+        + ", Misses: " + pool.misses() + ", Outstanding Leases: "
+        + pool.outstanding() );
+
+    StringBuilder windows = new StringBuilder( "Sliding Server Throughput" );
+    for ( int i = 0; i < WINDOWS.length; ++i )
+    {
+      windows.append( i == 0 ? " " : ", " ).append( WINDOWS[ i ] )
+          .append( "s: " )
+          .append( formatter.format( server.rate( WINDOWS[ i ] ) ) );
+    }
+    windows.append( " message(s), Per-client Throughput p50: " )
+        .append( formatter.format( percentile( activeClients, 50 ) ) )
+        .append( ", p90: " )
+        .append( formatter.format( percentile( activeClients, 90 ) ) )
+        .append( ", p99: " )
+        .append( formatter.format( percentile( activeClients, 99 ) ) )
+        .append( ", Heaviest Clients:" );
+    for ( int i = 0; i < TOP && heaviest[ i ] != null; ++i )
+    {
+      windows.append( i == 0 ? " " : ", " ).append( heaviest[ i ].name() )
+          .append( " ( " ).append( formatter.format( heaviestRates[ i ] ) )
+          .append( " )" );
+    }
+    if ( StageLatency.ENABLED )
+    {
+      windows.append( "\n" ).append( stages.summary() );
+    }
+    windows.append( "\nOverload Events: " ).append( overloads.sumThenReset() )
+        .append( ", Max Queued Tasks: " ).append( maxQueued.getThenReset() )
+        .append( ", Throttled Clients: " ).append( throttled.sumThenReset() )
+        .append( ", Deferred Tasks: " ).append( deferred.sumThenReset() )
+        .append( ", Rejected Connections: " )
+        .append( rejected.sumThenReset() ).append( ", Shed Batches: " )
+        .append( shedBatches.sumThenReset() ).append( " ( " )
+        .append( shedMessages.sumThenReset() ).append( " message(s) )" );
+    System.out.println( windows.append( "\n" ) );
+  }
 
-      double mean = totalPerSecond;
-      double std = 0;
-      if ( activeClients > 1 )
+  /**
+   * Collect the throughput of every client over the time frame into the
+   * rates, and keep the heaviest clients in order.
+   * 
+   * @return the number of clients collected
+   */
+  private int collect() {
+    int count = 0;
+    for ( int i = 0; i < TOP; ++i )
+    {
+      heaviest[ i ] = null;
+    }
+    for ( Connection connection : connections )
+    {
+      Throughput throughput = connection.throughput();
+      if ( count == rates.length )
+      {
+        rates = Arrays.copyOf( rates, count * 2 );
+      }
+      double rate = throughput.rate( TIME_FRAME );
+      rates[ count++ ] = rate;
+      // Insert into the heaviest clients, which are sorted descending
+      int position = TOP;
+      while ( position > 0 && ( heaviest[ position - 1 ] == null
+          || heaviestRates[ position - 1 ] < rate ) )
+      {
+        --position;
+      }
+      if ( position < TOP )
       {
-        mean /= activeClients;
+        System.arraycopy( heaviest, position, heaviest, position + 1,
+            TOP - position - 1 );
+        System.arraycopy( heaviestRates, position, heaviestRates,
+            position + 1, TOP - position - 1 );
+        heaviest[ position ] = throughput;
+        heaviestRates[ position ] = rate;
+      }
+    }
+    return count;
+  }
 
-        double sum = 0;
-        double scaledMean = mean * TIME_FRAME;
-        for ( LongAdder val : map.values() )
+  /**
+   * Select the per-client throughput at a percentile of the collected
+   * rates, reordering them in place.
+   * 
+   * @param count the number of collected rates
+   * @param percentile between 0 and 100
+   * @return the throughput at the percentile, or zero without clients
+   */
+  private double percentile(int count, double percentile) {
+    if ( count == 0 )
+    {
+      return 0;
+    }
+    int k = Math.max( 0, ( int ) Math.ceil( percentile / 100 * count ) - 1 );
+    int low = 0;
+    int high = count - 1;
+    while ( low < high )
+    {
+      double pivot = rates[ ( low + high ) >>> 1 ];
+      int i = low;
+      int j = high;
+      while ( i <= j )
+      {
+        while ( rates[ i ] < pivot )
         {
-          int value = val.intValue();
-          sum += Math.pow( value - scaledMean, 2 );
+          ++i;
+        }
+        while ( rates[ j ] > pivot )
+        {
+          --j;
+        }
+        if ( i <= j )
+        {
+          double swap = rates[ i ];
+          rates[ i++ ] = rates[ j ];
+          rates[ j-- ] = swap;
         }
-
-        std = Math.sqrt( sum / activeClients  ) / TIME_FRAME;
       }
-      NumberFormat formatter = new DecimalFormat( "#0.000" );
-
-      System.out.println( "[" + timestamp + "]" + " Server Throughput: "
-          + formatter.format( totalPerSecond )
-          + " message(s), Active Client Connections: " + map.size()
-          + ", Mean Per-client Throughput: " + formatter.format( mean )
-          + " message(s), Std. Dev. Of Per-client Throughput: "
-          + formatter.format( std ) + "\n" );
-
-      // Reset all active clients to have sent zero messages.
-      map.replaceAll( (k, v) -> new LongAdder() );
+      if ( k <= j )
+      {
+        high = j;
+      } else if ( k >= i )
+      {
+        low = i;
+      } else
+      {
+        break;
+      }
     }
+    return rates[ k ];
   }
 
+  /**
+   * Parse a comma separated list of windows in seconds.
+   * 
+   * @param windows
+   * @return the windows in ascending order
+   */
+  private static int[] parseWindows(String windows) {
+    String[] values = windows.split( "," );
+    int[] parsed = new int[ values.length ];
+    try
+    {
+      for ( int i = 0; i < values.length; ++i )
+      {
+        parsed[ i ] = Math.max( Integer.parseInt( values[ i ].trim() ), 1 );
+      }
+    } catch ( NumberFormatException e )
+    {
+      LOG.error( "Unable to parse the statistics windows: " + windows
+          + ", using 1,10,60." );
+      return new int[] { 1, 10, 60 };
+    }
+    Arrays.sort( parsed );
+    return parsed;
+  }
 }
@@ -0,0 +1,131 @@
+package cs455.scaling.server;
+
+import cs455.scaling.util.LatencyHistogram;
+
+/**
+ * Latency of every stage of the server pipeline, from the readiness of
+ * a key to the acknowledgement being written.
+ *
+ * Tasks and messages are stamped at each stage boundary, and the time
+ * between boundaries is recorded into a histogram per stage:
+ *
+ * <ul>
+ * <li>Dispatch - from the selector waking up to a task being handed to
+ * the thread pool</li>
+ * <li>Queue - from a task being created to a thread processing it</li>
+ * <li>Read - a receiver reading and handing off the messages</li>
+ * <li>Batch - a message waiting in the accumulator for its batch</li>
+ * <li>Hash - a sender hashing its batch</li>
+ * <li>Write - a sender writing the acknowledgements of its batch</li>
+ * <li>Total - a message from being received to being acknowledged</li>
+ * </ul>
+ *
+ * The instrumentation is disabled by setting the
+ * <code>cs455.scaling.stats.stages</code> system property to
+ * <code>false</code>, in which case no time is read and nothing is
+ * recorded.
+ *
+ * @author stock
+ *
+ */
+public class StageLatency {
+
+  /**
+   * Set unless disabled by the <code>cs455.scaling.stats.stages</code>
+   * system property.
+   */
+  public static final boolean ENABLED = Boolean.parseBoolean(
+      System.getProperty( "cs455.scaling.stats.stages", "true" ) );
+
+  public static final int DISPATCH = 0;
+
+  public static final int QUEUE = 1;
+
+  public static final int READ = 2;
+
+  public static final int BATCH = 3;
+
+  public static final int HASH = 4;
+
+  public static final int WRITE = 5;
+
+  public static final int TOTAL = 6;
+
+  private static final String[] NAMES =
+      { "Dispatch", "Queue", "Read", "Batch", "Hash", "Write", "Total" };
+
+  private final LatencyHistogram[] stages =
+      new LatencyHistogram[ NAMES.length ];
+
+  /**
+   * Default constructor - create a histogram for every stage.
+   *
+   */
+  StageLatency() {
+    for ( int i = 0; i < stages.length; ++i )
+    {
+      stages[ i ] = new LatencyHistogram();
+    }
+  }
+
+  /**
+   *
+   * @return the current time to stamp a stage boundary with, or zero
+   *         when disabled
+   */
+  public static long now() {
+    return ENABLED ? System.nanoTime() : 0;
+  }
+
+  /**
+   * Record the time from a boundary until now for a stage.
+   *
+   * @param stage
+   * @param start the time stamped at the start of the stage
+   * @return the current time, which starts the next stage, or zero when
+   *         disabled
+   */
+  public long record(int stage, long start) {
+    if ( !ENABLED )
+    {
+      return 0;
+    }
+    long now = System.nanoTime();
+    stages[ stage ].record( now - start );
+    return now;
+  }
+
+  /**
+   * Record a latency that has already been measured for a stage.
+   *
+   * @param stage
+   * @param nanos
+   */
+  public void add(int stage, long nanos) {
+    if ( ENABLED )
+    {
+      stages[ stage ].record( nanos );
+    }
+  }
+
+  /**
+   * Take a snapshot of every stage, and format the percentiles. Only
+   * called by the statistics thread.
+   *
+   * @return p50 / p99 of every stage, in milliseconds
+   */
+  String summary() {
+    StringBuilder summary =
+        new StringBuilder( "Stage Latency p50 / p99 (ms)" );
+    for ( int i = 0; i < stages.length; ++i )
+    {
+      stages[ i ].snapshot();
+      summary.append( i == 0 ? " " : ", " ).append( NAMES[ i ] )
+          .append( ": " )
+          .append( String.format( "%.3f / %.3f",
+              stages[ i ].percentile( 50 ) / 1e6,
+              stages[ i ].percentile( 99 ) / 1e6 ) );
+    }
+    return summary.toString();
+  }
+}
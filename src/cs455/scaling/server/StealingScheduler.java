@@ -0,0 +1,209 @@
+package cs455.scaling.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+import cs455.scaling.server.task.Task;
+
+/**
+ * Work-stealing scheduler where every worker thread owns a deque of
+ * tasks.
+ * 
+ * Tasks that are created by a worker, such as the <code>Sender</code>
+ * that follows a <code>Receiver</code>, are added to that worker's own deque so
+ * the follow-up work stays on the same thread. Tasks created by other
+ * threads ( reactors or timers ) are added to a shared submission
+ * queue. A worker that runs out of work steals from the deques of the
+ * other workers before parking.
+ * 
+ * @author stock
+ *
+ */
+class StealingScheduler implements Scheduler {
+
+  /**
+   * Upper bound a parked worker waits before looking for work again.
+   */
+  private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos( 100 );
+
+  private final ConcurrentLinkedDeque<Task>[] deques;
+
+  private final Queue<Task> submissions = new ConcurrentLinkedQueue<>();
+
+  private final Queue<Thread> idle = new ConcurrentLinkedQueue<>();
+
+  /**
+   * Number of tasks waiting in the submission queue and the deques, as
+   * their sizes are not constant time.
+   */
+  private final AtomicInteger size = new AtomicInteger( 0 );
+
+  /**
+   * The identifier of the worker running on the current thread, or
+   * <code>-1</code> when not a worker thread.
+   */
+  private final ThreadLocal<Integer> current = new ThreadLocal<Integer>() {
+    @Override
+    protected Integer initialValue() {
+      return -1;
+    }
+  };
+
+  /**
+   * Default constructor - create a deque for each of the workers.
+   * 
+   * @param numberOfThreads
+   */
+  @SuppressWarnings( { "unchecked", "rawtypes" } )
+  StealingScheduler(int numberOfThreads) {
+    this.deques = new ConcurrentLinkedDeque[ numberOfThreads ];
+    for ( int i = 0; i < numberOfThreads; ++i )
+    {
+      deques[ i ] = new ConcurrentLinkedDeque<>();
+    }
+  }
+
+  /**
+   * Add the task to the calling worker's deque, or to the submission
+   * queue when not called from a worker, and wake an idle worker.
+   */
+  @Override
+  public void put(Task task) {
+    size.incrementAndGet();
+    int worker = current.get();
+    if ( worker < 0 )
+    {
+      submissions.offer( task );
+    } else
+    {
+      deques[ worker ].offerLast( task );
+    }
+    Thread thread = idle.poll();
+    if ( thread != null )
+    {
+      LockSupport.unpark( thread );
+    }
+  }
+
+  /**
+   * Reserve a place for the task before adding it to the submission
+   * queue, so the capacity holds against concurrent offers.
+   */
+  @Override
+  public boolean offer(Task task, int capacity) {
+    int waiting;
+    do
+    {
+      waiting = size.get();
+      if ( waiting >= capacity )
+      {
+        return false;
+      }
+    } while ( !size.compareAndSet( waiting, waiting + 1 ) );
+    submissions.offer( task );
+    Thread thread = idle.poll();
+    if ( thread != null )
+    {
+      LockSupport.unpark( thread );
+    }
+    return true;
+  }
+
+  /**
+   * Look for work in the worker's own deque, then the submission queue,
+   * and lastly the deques of the other workers. The worker parks until
+   * woken by {@link #put(Task)} when no work is found.
+   */
+  @Override
+  public Task take(int worker) throws InterruptedException {
+    current.set( worker );
+    while ( true )
+    {
+      Task task = poll( worker );
+      if ( task != null )
+      {
+        return task;
+      }
+      Thread thread = Thread.currentThread();
+      idle.offer( thread );
+      // Check again now that a producer is able to wake this worker
+      task = poll( worker );
+      if ( task == null )
+      {
+        LockSupport.parkNanos( this, PARK_NANOS );
+      }
+      idle.remove( thread );
+      if ( Thread.interrupted() )
+      {
+        throw new InterruptedException();
+      }
+      if ( task != null )
+      {
+        return task;
+      }
+    }
+  }
+
+  /**
+   * 
+   * @param worker
+   * @return the next available task for the worker, or
+   *         <code>null</code> if there is none
+   */
+  private Task poll(int worker) {
+    Task task = deques[ worker ].pollFirst();
+    if ( task == null )
+    {
+      task = submissions.poll();
+    }
+    for ( int i = 1; task == null && i < deques.length; ++i )
+    {
+      task = deques[ ( worker + i ) % deques.length ].pollFirst();
+    }
+    if ( task != null )
+    {
+      size.decrementAndGet();
+    }
+    return task;
+  }
+
+  @Override
+  public int size() {
+    return size.get();
+  }
+
+  /**
+   * Search the submission queue, then the deques of the workers, each
+   * from their head where the oldest tasks are.
+   */
+  @Override
+  public Task removeOldest(Predicate<Task> filter) {
+    Task task = removeFirst( submissions, filter );
+    for ( int i = 0; task == null && i < deques.length; ++i )
+    {
+      task = removeFirst( deques[ i ], filter );
+    }
+    if ( task != null )
+    {
+      size.decrementAndGet();
+    }
+    return task;
+  }
+
+  private static Task removeFirst(Queue<Task> queue,
+      Predicate<Task> filter) {
+    for ( Task task : queue )
+    {
+      if ( filter.test( task ) && queue.remove( task ) )
+      {
+        return task;
+      }
+    }
+    return null;
+  }
+
+}
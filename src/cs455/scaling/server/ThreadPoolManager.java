@@ -1,9 +1,14 @@
 package cs455.scaling.server;
 
-import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import cs455.scaling.server.task.Sender;
 import cs455.scaling.server.task.Task;
 import cs455.scaling.util.Logger;
@@ -25,51 +30,137 @@ public class ThreadPoolManager {
 
   private final Thread[] threads;
 
-  private final LinkedBlockingQueue<Task> queue;
-  
-  private final List<byte[]> buffer;
-  
-  private final List<SocketChannel> clients;
+  private final Scheduler scheduler;
 
-  private long initTime;
+  /**
+   * Executes every task on its own thread in the <code>virtual</code>
+   * execution mode, otherwise <code>null</code>.
+   */
+  private final ExecutorService executor;
 
-  private final int batchSize;
+  private final BatchAccumulator accumulator;
+
+  private final Timer flusher;
 
-  private final int batchTime;
+  /**
+   * Nanoseconds between checks of the batch-time.
+   */
+  private final long flushPeriod;
+
+  private final int batchSize;
 
   private final ServerStatistics statistics;
-  
+
+  private final BufferPool pool;
+
+  /**
+   * Batches with more messages than the threshold are hashed in
+   * parallel, in chunks of at most the threshold, or never when zero.
+   */
+  private final int hashThreshold;
+
+  /**
+   * Pool that the chunks of large batches are hashed on, or
+   * <code>null</code> when batches are hashed on a single thread.
+   */
+  private final ForkJoinPool hashing;
+
+  /**
+   * Waiting tasks at which the thread pool is overloaded, or zero if
+   * the queue is unbounded. It recovers at half of the capacity.
+   */
+  private final int capacity;
+
+  private final boolean pauseReads;
+
+  private final boolean rejectAccepts;
+
+  private final boolean shedBatches;
+
+  private final AtomicBoolean overloaded = new AtomicBoolean( false );
 
   /**
    * Default constructor that is to be created only once along with the
    * server. A specified number of threads are created that will hold a
-   * reference to the queue.
+   * reference to the scheduler.
+   * 
+   * The scheduler is chosen with the <code>cs455.scaling.scheduler</code>
+   * system property; either <code>fifo</code> ( default ) for a single
+   * shared queue, or <code>stealing</code> for per-worker deques with
+   * work stealing.
+   * 
+   * With the <code>cs455.scaling.execution</code> system property set
+   * to <code>virtual</code>, the worker threads are not created, and
+   * every task runs on its own virtual thread instead. Each client is
+   * then read with blocking I/O on a thread of its own.
+   * 
+   * The <code>cs455.scaling.hash.threshold</code> system property sets
+   * the number of messages above which a batch is split up and hashed
+   * on a fork-join pool; batches are hashed on one thread by default.
+   * 
+   * The <code>cs455.scaling.queue.capacity</code> system property bounds
+   * the number of waiting tasks ( default 1024, or 0 for unbounded ).
+   * The reactors offer their tasks with {@link #offerTask(Task)}, which
+   * refuses them at capacity. Senders, created by the workers and the
+   * batch timer, are always added, since blocking them could deadlock
+   * the pool; they are bounded by the reads that produce them instead.
+   * At capacity the thread pool is overloaded, and the policies of
+   * <code>cs455.scaling.queue.overload</code> apply until the queue has
+   * drained to half; any of <code>pause</code> ( default ) to stop
+   * reading from the noisiest clients, <code>reject</code> to close new
+   * connections as they are accepted, and <code>shed</code> to drop the
+   * oldest waiting batch for every new task.
    * 
    * @param arguments
    * @param statistics 
+   * @param pool for leasing message buffers
    */
-  public ThreadPoolManager(int[] arguments, ServerStatistics statistics) {
-    final int numberOfThreads = arguments[1];
+  public ThreadPoolManager(int[] arguments, ServerStatistics statistics,
+      BufferPool pool) {
+    this.executor = "virtual".equals(
+        System.getProperty( "cs455.scaling.execution", "pool" ) )
+            ? newVirtualExecutor()
+            : null;
+    final int numberOfThreads = executor == null ? arguments[ 1 ] : 0;
     this.threads = new Thread[ numberOfThreads ];
-    this.queue = new LinkedBlockingQueue<Task>();
-    this.buffer = new LinkedList<byte[]>();
-    this.clients = new LinkedList<SocketChannel>();
+    this.scheduler = newScheduler(
+        System.getProperty( "cs455.scaling.scheduler", "fifo" ),
+        numberOfThreads );
     
     this.statistics = statistics;
-    this.initTime = System.nanoTime();
+    this.pool = pool;
     this.batchSize = arguments[ 2 ];
-    this.batchTime = arguments[ 3 ];
+    this.hashThreshold =
+        Math.max( Integer.getInteger( "cs455.scaling.hash.threshold", 0 ), 0 );
+    this.hashing = hashThreshold > 0 ? new ForkJoinPool() : null;
+    this.capacity =
+        Math.max( Integer.getInteger( "cs455.scaling.queue.capacity", 1024 ),
+            0 );
+    String policies =
+        "," + System.getProperty( "cs455.scaling.queue.overload", "pause" )
+            .replace( " ", "" ) + ",";
+    this.pauseReads = policies.contains( ",pause," );
+    this.rejectAccepts = policies.contains( ",reject," );
+    this.shedBatches = policies.contains( ",shed," );
+
+    final long batchTime = TimeUnit.SECONDS.toNanos( arguments[ 3 ] );
+    this.accumulator = new BatchAccumulator( batchSize, batchTime );
+    this.flusher = new Timer( "batch-flush", true );
+    this.flushPeriod = Math.min( Math.max( batchTime / 10,
+        TimeUnit.MILLISECONDS.toNanos( 1 ) ),
+        TimeUnit.MILLISECONDS.toNanos( 100 ) );
 
     for ( int i = 0; i < numberOfThreads; ++i )
     {
-      threads[ i ] = new Thread( new WorkerThread( queue, i ) );
+      threads[ i ] = new Thread( new WorkerThread( scheduler, i ) );
     }
   }
 
   /**
    * After the threads are all created in the constructor for this
    * object, they are started and looking each looking for a message to
-   * take off the queue.
+   * take off the queue. The batch-time is enforced by a dedicated timer
+   * that flushes batches even when no new messages arrive.
    * 
    */
   public void start() {
@@ -77,37 +168,280 @@ public class ThreadPoolManager {
     {
       threads[ i ].start();
     }
+    final long period = TimeUnit.NANOSECONDS.toMillis( flushPeriod );
+    flusher.scheduleAtFixedRate( new TimerTask() {
+      @Override
+      public void run() {
+        dispatch( accumulator.expire( flushPeriod ) );
+      }
+    }, period, period );
   }
 
   /**
-   * When a new task is created, it is added to the tail of the queue.
+   * Stop the worker threads, the batch flush timer and any executors.
+   * Tasks that are queued or in flight are abandoned, so this is only
+   * used when the server itself is stopped.
+   *
+   */
+  public void shutdown() {
+    flusher.cancel();
+    for ( int i = 0; i < threads.length; ++i )
+    {
+      threads[ i ].interrupt();
+    }
+    if ( executor != null )
+    {
+      executor.shutdownNow();
+    }
+    if ( hashing != null )
+    {
+      hashing.shutdownNow();
+    }
+  }
+
+  /**
+   * Create the scheduler for the specified mode.
+   * 
+   * @param mode either <code>fifo</code> or <code>stealing</code>
+   * @param numberOfThreads
+   * @return a new scheduler
+   */
+  static Scheduler newScheduler(String mode, int numberOfThreads) {
+    switch ( mode )
+    {
+      case "fifo" :
+        return new FifoScheduler();
+      case "stealing" :
+        return new StealingScheduler( numberOfThreads );
+      default :
+        LOG.error( "Unknown scheduler: " + mode + ", using fifo." );
+        return new FifoScheduler();
+    }
+  }
+
+  /**
+   * Create an executor that starts a new virtual thread for each task.
+   * Virtual threads are looked up reflectively so the server still
+   * runs on older JVMs, where a new platform thread is used per task.
+   * 
+   * @return a new thread per task executor
+   */
+  private static ExecutorService newVirtualExecutor() {
+    try
+    {
+      Method method =
+          Executors.class.getMethod( "newVirtualThreadPerTaskExecutor" );
+      return ( ExecutorService ) method.invoke( null );
+    } catch ( ReflectiveOperationException e )
+    {
+      LOG.info( "Virtual threads are not supported by this JVM, using a "
+          + "platform thread per task instead." );
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /**
+   * 
+   * @return true if every task runs on its own thread, and clients are
+   *         read with blocking I/O rather than by the reactors
+   */
+  public boolean isThreadPerTask() {
+    return executor != null;
+  }
+
+  /**
+   * When a new task is created, it is handed to the scheduler; added to
+   * the tail of the queue by default. In the <code>virtual</code>
+   * execution mode the task is started on a thread of its own.
+   * 
+   * With the <code>shed</code> policy, the oldest waiting batch is
+   * dropped first if the queue is at capacity.
    * 
    * @param task
    * @throws InterruptedException
    */
   public void addTask(Task task) throws InterruptedException {
-    queue.put( task );
+    if ( executor == null )
+    {
+      shedIfFull();
+      scheduler.put( task );
+      queued();
+    } else
+    {
+      executor.execute( task::process );
+    }
   }
-  
-  public synchronized void addUnit(byte[] payload, SocketChannel client) {
-    buffer.add( payload );
-    clients.add( client );
-    if ( buffer.size() == batchSize || ( ( int ) Math
-        .round( ( System.nanoTime() - initTime ) / 1E9 ) >= batchTime ) )
+
+  /**
+   * Add a task unless the queue is at capacity, in which case the
+   * thread pool is overloaded and the caller should try again once it
+   * has recovered. Tasks are always accepted when the queue is
+   * unbounded, or in the <code>virtual</code> execution mode.
+   * 
+   * With the <code>shed</code> policy, the oldest waiting batch is
+   * dropped first to make room.
+   * 
+   * @param task
+   * @return false if the task was not added
+   * @throws InterruptedException
+   */
+  public boolean offerTask(Task task) throws InterruptedException {
+    if ( executor != null || capacity == 0 )
+    {
+      addTask( task );
+      return true;
+    }
+    shedIfFull();
+    if ( !scheduler.offer( task, capacity ) )
+    {
+      update( scheduler.size() );
+      return false;
+    }
+    queued();
+    return true;
+  }
+
+  /**
+   * Record the waiting tasks once one has been added.
+   * 
+   */
+  private void queued() {
+    int size = scheduler.size();
+    statistics.queued( size );
+    update( size );
+  }
+
+  /**
+   * The thread pool is overloaded once the waiting tasks reach the
+   * capacity, until they drain to half of it. Never overloaded in the
+   * <code>virtual</code> execution mode.
+   *
+   * @return true if the thread pool is overloaded
+   */
+  public boolean isOverloaded() {
+    return executor == null && capacity > 0 && update( scheduler.size() );
+  }
+
+  /**
+   *
+   * @return true if reading from the noisiest clients pauses while
+   *         overloaded
+   */
+  public boolean pausesReads() {
+    return pauseReads;
+  }
+
+  /**
+   *
+   * @return true if new connections are rejected while overloaded
+   */
+  public boolean rejectsAccepts() {
+    return rejectAccepts;
+  }
+
+  /**
+   * Enter or leave the overloaded state for the number of waiting
+   * tasks, counting every time it is entered.
+   *
+   * @param size the number of waiting tasks
+   * @return true if overloaded
+   */
+  private boolean update(int size) {
+    if ( capacity == 0 )
     {
-      Sender sender = new Sender( statistics, buffer, clients );
+      return false;
+    }
+    if ( size >= capacity )
+    {
+      if ( overloaded.compareAndSet( false, true ) )
+      {
+        statistics.overloaded();
+      }
+    } else if ( size <= capacity / 2 )
+    {
+      overloaded.set( false );
+    }
+    return overloaded.get();
+  }
+
+  /**
+   * Drop the oldest batch waiting for a sender, releasing its messages
+   * without acknowledging them, if the <code>shed</code> policy applies
+   * and the queue is at capacity.
+   *
+   */
+  private void shedIfFull() {
+    if ( !shedBatches || capacity == 0 || scheduler.size() < capacity )
+    {
+      return;
+    }
+    Task task = scheduler.removeOldest( t -> t instanceof Sender );
+    if ( task != null )
+    {
+      statistics.shed( ( ( Sender ) task ).discard() );
+    }
+  }
+
+  /**
+   *
+   * @return the pool that message buffers are leased from
+   */
+  public BufferPool getBufferPool() {
+    return pool;
+  }
+
+  /**
+   * Add a received message to the current batch. The batch is handed to
+   * a new {@link Sender} once it reaches the batch-size, or when the
+   * batch-time has elapsed.
+   *
+   * This method may be called concurrently from any number of threads,
+   * but only by one thread at a time for a given connection.
+   *
+   * @param payload a buffer leased from the pool, ready to be read
+   * @param connection the connection the message was received from
+   */
+  public void addUnit(ByteBuffer payload, Connection connection) {
+    dispatch(
+        accumulator.add( payload, connection, connection.nextSequence() ) );
+  }
+
+  /**
+   * Collect the claimed messages from the accumulator, and add them to
+   * the queue as senders of at most batch-size messages. The time each
+   * message waited for its batch is recorded, and the time it was
+   * received is passed on to the sender.
+   * 
+   * @param claimed the number of messages claimed from the accumulator
+   */
+  private void dispatch(int claimed) {
+    while ( claimed > 0 )
+    {
+      int size = Math.min( claimed, batchSize );
+      ByteBuffer[] data = new ByteBuffer[ size ];
+      Connection[] connections = new Connection[ size ];
+      int[] sequences = new int[ size ];
+      long[] received = StageLatency.ENABLED ? new long[ size ] : null;
+      accumulator.drain( data, connections, sequences, received );
+      if ( received != null )
+      {
+        long now = System.nanoTime();
+        for ( int i = 0; i < size; ++i )
+        {
+          statistics.stages().add( StageLatency.BATCH, now - received[ i ] );
+        }
+      }
       try
       {
-        addTask( sender );
-        buffer.clear();
-        clients.clear();
+        addTask( new Sender( statistics, pool, data, connections, sequences,
+            received, hashing, hashThreshold ) );
       } catch ( InterruptedException e )
       {
         LOG.error(
             "Unable to add task to thread pool queue. " + e.getMessage() );
       }
-      initTime = System.nanoTime();
+      claimed -= size;
     }
   }
-  
+
 }
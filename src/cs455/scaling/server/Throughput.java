@@ -0,0 +1,109 @@
+package cs455.scaling.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Message counter with a ring of per-second buckets, giving the
+ * throughput over any sliding window up to the length of the ring.
+ *
+ * Messages are added from any thread without blocking. Once a second
+ * the statistics thread samples the counter, storing the messages
+ * since the previous sample in the next bucket; only that thread reads
+ * the buckets, so sampling and reading do not allocate or lock.
+ *
+ * @author stock
+ *
+ */
+class Throughput {
+
+  private final LongAdder count = new LongAdder();
+
+  private final long[] buckets;
+
+  private final int mask;
+
+  private final String name;
+
+  /**
+   * The count at the last sample.
+   */
+  private long last = 0;
+
+  private long samples = 0;
+
+  /**
+   * Messages in the last sampled second, which may be read from any
+   * thread.
+   */
+  private volatile long recent = 0;
+
+  /**
+   * Default constructor - allocate the ring of buckets.
+   *
+   * @param seconds the longest window, rounded up to a power of two
+   * @param name describing what is counted, for reporting
+   */
+  Throughput(int seconds, String name) {
+    int size = Integer.highestOneBit( Math.max( seconds, 2 ) - 1 ) << 1;
+    this.buckets = new long[ size ];
+    this.mask = size - 1;
+    this.name = name;
+  }
+
+  /**
+   * Count a number of messages.
+   *
+   * @param messages
+   */
+  void add(int messages) {
+    count.add( messages );
+  }
+
+  /**
+   * Close the current second, storing its messages in the next bucket.
+   *
+   */
+  void sample() {
+    long total = count.sum();
+    recent = total - last;
+    buckets[ ( int ) ( samples++ & mask ) ] = recent;
+    last = total;
+  }
+
+  /**
+   * The throughput over the last seconds. Counters younger than the
+   * window are averaged over the seconds they have been sampled.
+   *
+   * @param seconds the length of the window
+   * @return messages per-second over the window
+   */
+  double rate(int seconds) {
+    int window = ( int ) Math.min( Math.min( seconds, samples ), mask + 1 );
+    if ( window == 0 )
+    {
+      return 0;
+    }
+    long sum = 0;
+    for ( long i = samples - window; i < samples; ++i )
+    {
+      sum += buckets[ ( int ) ( i & mask ) ];
+    }
+    return ( double ) sum / window;
+  }
+
+  /**
+   *
+   * @return the messages in the last sampled second
+   */
+  long recent() {
+    return recent;
+  }
+
+  /**
+   *
+   * @return what is counted
+   */
+  String name() {
+    return name;
+  }
+}
@@ -1,6 +1,5 @@
 package cs455.scaling.server;
 
-import java.util.concurrent.LinkedBlockingQueue;
 import cs455.scaling.server.task.Task;
 import cs455.scaling.util.Logger;
 
@@ -21,25 +20,26 @@ class WorkerThread implements Runnable {
    */
   private static final Logger LOG = new Logger( true, false );
 
-  private final LinkedBlockingQueue<Task> queue;
+  private final Scheduler scheduler;
 
   private final int identifier;
 
   /**
    * Default constructor to construct the working thread, and hold a
-   * reference to the queue.
+   * reference to the scheduler.
    * 
-   * @param queue
+   * @param scheduler
+   * @param identifier
    */
-  public WorkerThread(LinkedBlockingQueue<Task> queue, int identifier) {
-    this.queue = queue;
+  public WorkerThread(Scheduler scheduler, int identifier) {
+    this.scheduler = scheduler;
     this.identifier = identifier;
   }
 
   /**
    * Run method that is executed when the thread is started by the
-   * thread pool manager. The queue will be checked on each thread, and
-   * if a task is present, it will be processed.
+   * thread pool manager. The scheduler will be checked on each thread,
+   * and if a task is present, it will be processed.
    * 
    */
   @Override
@@ -51,16 +51,25 @@ class WorkerThread implements Runnable {
       try
       {
         // An available thread will take the item for processing
-        task = queue.take();
+        task = scheduler.take( identifier );
       } catch ( InterruptedException e )
       {
-        LOG.error( "Unable to take message off queue: " + e.getMessage() );
+        // Interrupted by the thread pool manager shutting down
+        LOG.debug( "Thread: " + Integer.toString( identifier ) + " stopped." );
         return;
       }
 
       LOG.debug(
           "Thread: " + Integer.toString( identifier ) + " is executing." );
-      task.process();
+      try
+      {
+        task.process();
+      } catch ( RuntimeException e )
+      {
+        // One failing task must not take the thread out of the pool
+        LOG.error( "Thread: " + Integer.toString( identifier )
+            + " failed to process a task. " + e.toString() );
+      }
       // A thread will become "available" after returning from the task
     }
   }
@@ -0,0 +1,112 @@
+package cs455.scaling.server.task;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import cs455.scaling.server.BufferPool;
+import cs455.scaling.server.Connection;
+import cs455.scaling.server.ServerStatistics;
+import cs455.scaling.server.ThreadPoolManager;
+import cs455.scaling.util.Logger;
+
+/**
+ * Reads the data from a single client with blocking I/O for as long as
+ * the client is connected.
+ * 
+ * This task is only used when the thread pool manager runs every task
+ * on a thread of its own ( virtual threads ), and replaces the reactor
+ * and {@link Receiver} for the client.
+ * 
+ * @author stock
+ *
+ */
+public class BlockingReceiver implements Task {
+
+  /**
+   * Have the ability to log output INFO, DEBUG, ERROR configured by
+   * Logger(INFO, DEBUG) and LOGGER#MASTER for ERROR settings.
+   */
+  private static final Logger LOG = new Logger( true, false );
+
+  private final ThreadPoolManager threadPoolManager;
+
+  private final ServerStatistics statistics;
+
+  private final SocketChannel client;
+
+  /**
+   * Default constructor - save reference to thread pool, statistics,
+   * and the blocking client channel.
+   * 
+   * @param threadPoolManager
+   * @param statistics
+   * @param client
+   */
+  public BlockingReceiver(ThreadPoolManager threadPoolManager,
+      ServerStatistics statistics, SocketChannel client) {
+    this.threadPoolManager = threadPoolManager;
+    this.statistics = statistics;
+    this.client = client;
+  }
+
+  /**
+   * Continuously read complete messages from the client, adding each
+   * to the batch, until the client disconnects.
+   * 
+   */
+  @Override
+  public void process() {
+    BufferPool pool = threadPoolManager.getBufferPool();
+    Connection connection = new Connection( client, null, null );
+    statistics.register( connection );
+    ByteBuffer buffer = null;
+    try
+    {
+      while ( !connection.isNegotiated() )
+      {
+        if ( connection.negotiate( pool ) == -1 )
+        {
+          throw new EOFException( "Client disconnected before negotiating." );
+        }
+      }
+      // The first inbound buffer holds the start of the first message of
+      // a client without a hello, the read ahead buffers are not needed
+      buffer = connection.lease( pool )[ 0 ];
+      connection.advance( 1 );
+      connection.release( pool );
+      while ( true )
+      {
+        if ( client.read( buffer ) == -1 )
+        {
+          break;
+        }
+        if ( !buffer.hasRemaining() )
+        {
+          buffer.flip();
+          threadPoolManager.addUnit( buffer, connection );
+          buffer = pool.lease();
+        }
+      }
+    } catch ( IOException e )
+    {
+      LOG.error( "Failed to read data from client. " + e.getMessage() );
+    }
+    if ( buffer != null )
+    {
+      pool.release( buffer );
+    }
+    connection.release( pool );
+    statistics.deregister( connection );
+    try
+    {
+      client.close();
+    } catch ( IOException e )
+    {
+      LOG.error( "Unable to close client connection: " + e.getMessage() );
+      return;
+    }
+    LOG.info( "Client disconnected." );
+  }
+
+}
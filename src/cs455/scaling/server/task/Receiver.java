@@ -4,10 +4,13 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import cs455.scaling.server.BufferPool;
+import cs455.scaling.server.Connection;
+import cs455.scaling.server.Reactor;
 import cs455.scaling.server.ServerStatistics;
+import cs455.scaling.server.StageLatency;
 import cs455.scaling.server.ThreadPoolManager;
 import cs455.scaling.util.Logger;
-import cs455.scaling.util.TransmissionUtilities;
 
 /**
  * Processes data as received from the clients.
@@ -32,47 +35,104 @@ public class Receiver implements Task {
 
   private final ThreadPoolManager threadPoolManager;
 
+  private final Reactor reactor;
+
+  private final ServerStatistics statistics;
+
+  private final long created = StageLatency.now();
+
   /**
-   * Default constructor - save reference to thread pool, statistics,
-   * and key ( associated with client ).
+   * Default constructor - save reference to thread pool, the reactor
+   * owning the key, statistics, and key ( associated with client ).
    * 
    * @param threadPoolManager
+   * @param reactor
    * @param statistics
    * @param key
    */
-  public Receiver(ThreadPoolManager threadPoolManager, SelectionKey key) {
+  public Receiver(ThreadPoolManager threadPoolManager, Reactor reactor,
+      ServerStatistics statistics, SelectionKey key) {
     this.threadPoolManager = threadPoolManager;
+    this.reactor = reactor;
+    this.statistics = statistics;
     this.key = key;
   }
 
   /**
-   * Read incoming messages from a given channel, check if the client
-   * has disconnected, or if there is data to be process. Attach a null
-   * object
+   * Read the bytes that are available from a given channel without
+   * waiting for more to arrive. The protocol is negotiated from the
+   * first bytes of a new connection. Every complete payload is added to
+   * the batch, and a partial payload is kept in the {@link Connection}
+   * attached to the key until the next readiness event. The key is
+   * re-armed for reading with the reactor once the data is handed off,
+   * unless the client has disconnected.
+   * 
+   * The time waiting in the queue and reading are recorded as stages of
+   * the pipeline.
    * 
    */
   @Override
   public void process() {
-    ByteBuffer buffer = ByteBuffer.allocate( TransmissionUtilities.EIGHT_KB );
-
-    SocketChannel client = ( SocketChannel ) key.channel();
+    long start = statistics.stages().record( StageLatency.QUEUE, created );
+    BufferPool pool = threadPoolManager.getBufferPool();
+    Connection connection = ( Connection ) key.attachment();
+    SocketChannel client = connection.channel();
 
-    int bytesRead = 0;
+    ByteBuffer[] buffers;
+    long bytesRead;
+    int complete;
     try
     {
-      while ( buffer.hasRemaining() && bytesRead != -1 )
+      if ( !connection.isNegotiated() )
       {
-        bytesRead = client.read( buffer );
+        bytesRead = connection.negotiate( pool );
+        if ( bytesRead == -1 || !connection.isNegotiated() )
+        {
+          disconnectOrRearm( bytesRead, pool, connection, client );
+          return;
+        }
       }
+      do
+      {
+        buffers = connection.lease( pool );
+        bytesRead = client.read( buffers );
+
+        complete = 0;
+        while ( complete < buffers.length
+            && !buffers[ complete ].hasRemaining() )
+        {
+          buffers[ complete ].flip();
+          threadPoolManager.addUnit( buffers[ complete ], connection );
+          ++complete;
+        }
+        connection.advance( complete );
+        // Only read again if every buffer was filled by this read
+      } while ( bytesRead > 0 && complete == buffers.length );
     } catch ( IOException e )
     {
       LOG.error( "Failed to read data from client. " + e.getMessage() );
-      ( ( ServerStatistics ) key.attachment() ).deregister( client );
-      return;
+      bytesRead = -1;
     }
+    statistics.stages().record( StageLatency.READ, start );
+    disconnectOrRearm( bytesRead, pool, connection, client );
+  }
+
+  /**
+   * Close the connection if the client has disconnected, otherwise
+   * re-arm the key for reading.
+   * 
+   * @param bytesRead the result of the last read
+   * @param pool
+   * @param connection
+   * @param client
+   */
+  private void disconnectOrRearm(long bytesRead, BufferPool pool,
+      Connection connection, SocketChannel client) {
     if ( bytesRead == -1 )
     {
-      ( ( ServerStatistics ) key.attachment() ).deregister( client );
+      connection.release( pool );
+      statistics.deregister( connection );
+      reactor.closed( connection );
       try
       {
         client.close();
@@ -85,9 +145,9 @@ public class Receiver implements Task {
       LOG.info( "Client disconnected." );
     } else
     {
-      threadPoolManager.addUnit( buffer.array(), client );
+      connection.trim( pool );
+      reactor.rearm( key );
     }
-    key.attach( null );
   }
 
 }
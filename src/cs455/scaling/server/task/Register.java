@@ -2,10 +2,12 @@ package cs455.scaling.server.task;
 
 import java.io.IOException;
 import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
+import cs455.scaling.server.Reactor;
 import cs455.scaling.server.ServerStatistics;
+import cs455.scaling.server.StageLatency;
+import cs455.scaling.server.ThreadPoolManager;
 import cs455.scaling.util.Logger;
 
 /**
@@ -23,54 +25,85 @@ public class Register implements Task {
    */
   private static final Logger LOG = new Logger( true, false );
 
-  private final Selector selector;
-
-  private final ServerSocketChannel serverSocket;
+  private final Reactor acceptor;
 
   private final SelectionKey key;
 
+  private final Reactor reactor;
+
+  private final ThreadPoolManager threadPoolManager;
+
+  private final ServerStatistics statistics;
+
+  private final long created = StageLatency.now();
+
   /**
-   * Default constructor - hold reference to the selector, server
-   * socket, and key associated with a given client.
+   * Default constructor - hold reference to the reactor that accepted
+   * the connection, the key associated with the server socket, the
+   * reactor the client will be registered with, the thread pool, and
+   * statistics.
    * 
-   * @param selector
-   * @param serverSocket
+   * @param acceptor
    * @param key
+   * @param reactor
+   * @param threadPoolManager
+   * @param statistics
    */
-  public Register(Selector selector, ServerSocketChannel serverSocket,
-      SelectionKey key) {
-    this.selector = selector;
-    this.serverSocket = serverSocket;
+  public Register(Reactor acceptor, SelectionKey key, Reactor reactor,
+      ThreadPoolManager threadPoolManager, ServerStatistics statistics) {
+    this.acceptor = acceptor;
     this.key = key;
+    this.reactor = reactor;
+    this.threadPoolManager = threadPoolManager;
+    this.statistics = statistics;
   }
 
   /**
    * Invoked upon a new client registering itself with the server, and
-   * having an available working thread
+   * having an available working thread. The server socket is re-armed
+   * for accepting once complete.
+   * 
+   * When the thread pool runs a thread per task, the client is left in
+   * blocking mode and read by a {@link BlockingReceiver} instead of
+   * being registered with a reactor.
    */
   @Override
   public void process() {
+    statistics.stages().record( StageLatency.QUEUE, created );
     SocketChannel client;
     try
     {
-      client = serverSocket.accept();
+      client = ( ( ServerSocketChannel ) key.channel() ).accept();
       if ( client == null )
       {
         LOG.debug(
             "Null client caused a registration fault - to register, retrying." );
-        key.attach( null );
         return;
       }
-      client.configureBlocking( false );
-      client.register( selector, SelectionKey.OP_READ );
+      client.configureBlocking( threadPoolManager.isThreadPerTask() );
     } catch ( IOException e )
     {
       LOG.error( "Thread pool is interrupted due to an issue: " + e.getMessage()
           + ", unable to register client with selector." );
       return;
+    } finally
+    {
+      acceptor.rearm( key );
     }
 
-    ( ( ServerStatistics ) key.attachment() ).register( client );
-    key.attach( null );
+    if ( threadPoolManager.isThreadPerTask() )
+    {
+      try
+      {
+        threadPoolManager.addTask(
+            new BlockingReceiver( threadPoolManager, statistics, client ) );
+      } catch ( InterruptedException e )
+      {
+        LOG.error( "Unable to start reading from client: " + e.getMessage() );
+      }
+    } else
+    {
+      reactor.register( client );
+    }
   }
 }
@@ -2,9 +2,14 @@ package cs455.scaling.server.task;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
-import java.util.List;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import cs455.scaling.server.BufferPool;
+import cs455.scaling.server.Connection;
 import cs455.scaling.server.ServerStatistics;
+import cs455.scaling.server.StageLatency;
+import cs455.scaling.util.HashEngine;
 import cs455.scaling.util.Logger;
 import cs455.scaling.util.TransmissionUtilities;
 
@@ -16,6 +21,14 @@ import cs455.scaling.util.TransmissionUtilities;
  * respond to data. When a new thread is available in thread pool
  * manager, a thread will execute this task.
  * 
+ * Large batches may have their hashing split into fork-join subtasks.
+ * Each subtask puts its acknowledgements at a fixed offset, so they are
+ * still written in the order of the batch.
+ * 
+ * The time waiting in the queue, hashing and writing are recorded as
+ * stages of the pipeline, along with the total time of every message
+ * since it was received.
+ * 
  * @author stock
  *
  */
@@ -27,55 +40,282 @@ public class Sender implements Task {
    */
   private static final Logger LOG = new Logger( true, false );
 
-  private final byte[][] data;
+  private static final ThreadLocal<Scratch> SCRATCH =
+      ThreadLocal.withInitial( Scratch::new );
+
+  private final ByteBuffer[] data;
+
+  private final Connection[] connections;
+
+  private final int[] sequences;
 
-  private final SocketChannel[] clients;
+  /**
+   * The time each message was received, or <code>null</code> when the
+   * stage latency is disabled.
+   */
+  private final long[] received;
+
+  private final long created = StageLatency.now();
 
   private final ServerStatistics statistics;
 
+  private final BufferPool pool;
+
+  private final ForkJoinPool hashing;
+
+  private final int threshold;
+
   /**
    * Default constructor to build a new task. Data and clients are
    * associated with this task, and will run when a new thread becomes
    * available.
    * 
    * @param statistics
+   * @param pool where the leased message buffers are released to
    * 
-   * @param data a list of <code>byte[]</code> that will be converted to
-   *        a <code>byte[][]</code>.
-   * @param clients the associated socket channels for each of the
+   * @param data the leased buffers of the batch
+   * @param connections the associated connections for each of the
    *        messages.
+   * @param sequences the sequence number of each message on its
+   *        connection
+   * @param received the time each message was received, or
+   *        <code>null</code>
+   * @param hashing pool to hash large batches on, or <code>null</code>
+   *        to hash every batch on the current thread
+   * @param threshold the most messages hashed by a single thread
    */
-  public Sender(ServerStatistics statistics, List<byte[]> data,
-      List<SocketChannel> clients) {
+  public Sender(ServerStatistics statistics, BufferPool pool,
+      ByteBuffer[] data, Connection[] connections, int[] sequences,
+      long[] received, ForkJoinPool hashing, int threshold) {
     this.statistics = statistics;
-    this.data = data
-        .toArray( new byte[ data.size() ][ TransmissionUtilities.EIGHT_KB ] );
-    this.clients = clients.toArray( new SocketChannel[ clients.size() ] );
+    this.pool = pool;
+    this.data = data;
+    this.connections = connections;
+    this.sequences = sequences;
+    this.received = received;
+    this.hashing = hashing;
+    this.threshold = threshold;
   }
 
   /**
    * Executes when a new thread becomes available, writing the data back
    * to the respective client. The hash of the each message will be
-   * computed, and sent as the pay load back to the client.
+   * computed, and sent as the pay load back to the client. The message
+   * buffers are released back to the pool once processed.
    * 
    */
   @Override
   public void process() {
+    StageLatency stages = statistics.stages();
+    long start = stages.record( StageLatency.QUEUE, created );
+    int[] offsets = new int[ data.length + 1 ];
     for ( int i = 0; i < data.length; ++i )
     {
-      String hash = TransmissionUtilities.SHA1FromBytes( data[ i ] );
-      SocketChannel client = clients[i];
+      offsets[ i + 1 ] = offsets[ i ] + connections[ i ].ackLength();
+    }
+    ByteBuffer acks = ByteBuffer.allocate( offsets[ data.length ] );
+    try
+    {
+      if ( hashing == null || data.length <= threshold )
+      {
+        hash( acks, 0, data.length );
+      } else
+      {
+        hashing.invoke( new Chunk( acks, offsets, 0, data.length ) );
+      }
+    } finally
+    {
+      for ( ByteBuffer buffer : data )
+      {
+        pool.release( buffer );
+      }
+    }
+    long hashed = stages.record( StageLatency.HASH, start );
+    send( acks.array(), offsets );
+    long written = stages.record( StageLatency.WRITE, hashed );
+    if ( received != null )
+    {
+      for ( long time : received )
+      {
+        stages.add( StageLatency.TOTAL, written - time );
+      }
+    }
+  }
+
+  /**
+   * Drop the batch without processing it, when it is shed by an
+   * overloaded thread pool. The message buffers are released back to
+   * the pool, and the messages are never acknowledged.
+   * 
+   * @return the number of messages dropped
+   */
+  public int discard() {
+    for ( ByteBuffer buffer : data )
+    {
+      pool.release( buffer );
+    }
+    return data.length;
+  }
+
+  /**
+   * Compute the hash of a range of messages of the batch, encoded as
+   * the acknowledgement negotiated by its connection; either a hex
+   * string, or the raw digest optionally followed by the sequence
+   * number.
+   * 
+   * @param acks buffer to put the acknowledgements into, one after
+   *        another, in the order of the batch
+   * @param from the first message to hash
+   * @param to one past the last message to hash
+   */
+  private void hash(ByteBuffer acks, int from, int to) {
+    HashEngine engine = HashEngine.get();
+    for ( int i = from; i < to; ++i )
+    {
+      int options = connections[ i ].options();
+      if ( ( options & TransmissionUtilities.BINARY_ACKS ) == 0 )
+      {
+        engine.hex( data[ i ], acks );
+        continue;
+      }
+      engine.digest( data[ i ], acks );
+      if ( ( options & TransmissionUtilities.SEQUENCE_NUMBERS ) != 0 )
+      {
+        acks.putInt( sequences[ i ] );
+      }
+    }
+  }
+
+  /**
+   * Write the acknowledgements of the batch grouped by client, so that
+   * each client receives all of its acknowledgements, in order, with a
+   * single gathering write. Consecutive acknowledgements for the same
+   * client are sent from one buffer.
+   * 
+   * The messages are grouped in one sort of their indices, keyed by the
+   * identity of their connection, into scratch arrays of the thread. A
+   * client whose key collides with another is written to once per run,
+   * still in order.
+   * 
+   * A client that can not be written to is closed, and its remaining
+   * acknowledgements are dropped.
+   * 
+   * @param acks
+   * @param offsets the offset of each acknowledgement, followed by the
+   *        total length
+   */
+  private void send(byte[] acks, int[] offsets) {
+    int n = connections.length;
+    Scratch scratch = SCRATCH.get().reserve( n );
+    long[] order = scratch.order;
+    ByteBuffer[] group = scratch.group;
+    for ( int i = 0; i < n; ++i )
+    {
+      order[ i ] =
+          ( ( long ) System.identityHashCode( connections[ i ] ) << 32 ) | i;
+    }
+    Arrays.sort( order, 0, n );
+    int k = 0;
+    while ( k < n )
+    {
+      Connection connection = connections[ ( int ) order[ k ] ];
+      int length = 0;
+      int messages = 0;
+      int previous = -1;
+      for ( ; k < n && connections[ ( int ) order[ k ] ] == connection; ++k )
+      {
+        int j = ( int ) order[ k ];
+        // Extend the previous buffer when following the same client
+        if ( messages > 0 && j == previous + 1 )
+        {
+          group[ length - 1 ].limit( offsets[ j + 1 ] );
+        } else
+        {
+          group[ length++ ] = ByteBuffer.wrap( acks, offsets[ j ],
+              offsets[ j + 1 ] - offsets[ j ] );
+        }
+        previous = j;
+        ++messages;
+      }
       try
       {
-        client.write( ByteBuffer.wrap( hash.getBytes() ) );
+        if ( connection.hasFailed() )
+        {
+          continue;
+        }
+        connection.write( group, length );
       } catch ( IOException e )
       {
-        statistics.deregister( client );
-        LOG.error( "Unable to write to client: " + e.getMessage()
-            + ", deregistering client." );
+        statistics.deregister( connection );
+        if ( connection.fail() )
+        {
+          LOG.error( "Unable to write to client: " + e.getMessage()
+              + ", closing client." );
+        }
+        continue;
+      } finally
+      {
+        Arrays.fill( group, 0, length, null );
+      }
+      statistics.increment( connection, messages );
+    }
+  }
+
+  /**
+   * Arrays reused by the senders of a thread to group a batch, grown to
+   * the largest batch seen.
+   */
+  private static class Scratch {
+
+    private long[] order = new long[ 0 ];
+
+    private ByteBuffer[] group = new ByteBuffer[ 0 ];
+
+    private Scratch reserve(int size) {
+      if ( order.length < size )
+      {
+        order = new long[ size ];
+        group = new ByteBuffer[ size ];
+      }
+      return this;
+    }
+  }
+
+  /**
+   * A range of the batch to hash, which is split in half until it holds
+   * no more messages than the threshold.
+   */
+  private class Chunk extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ByteBuffer acks;
+
+    private final int[] offsets;
+
+    private final int from;
+
+    private final int to;
+
+    private Chunk(ByteBuffer acks, int[] offsets, int from, int to) {
+      this.acks = acks;
+      this.offsets = offsets;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if ( to - from <= threshold )
+      {
+        ByteBuffer view = acks.duplicate();
+        view.position( offsets[ from ] );
+        hash( view, from, to );
         return;
       }
-      statistics.increment( client );
+      int middle = ( from + to ) >>> 1;
+      invokeAll( new Chunk( acks, offsets, from, middle ),
+          new Chunk( acks, offsets, middle, to ) );
     }
   }
 }
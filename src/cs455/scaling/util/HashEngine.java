@@ -0,0 +1,173 @@
+package cs455.scaling.util;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Reusable SHA-1 hashing engine that computes digests without
+ * allocating per message.
+ *
+ * Every thread caches its own engine, holding a message digest and a
+ * scratch array for the result. The digest is computed from the
+ * remaining bytes of a buffer, which may be direct, and is written to
+ * a buffer supplied by the caller, either raw or hex encoded through a
+ * lookup table.
+ *
+ * @author stock
+ *
+ */
+public class HashEngine {
+
+  /**
+   * Have the ability to log output INFO, DEBUG, ERROR configured by
+   * Logger(INFO, DEBUG) and LOGGER#MASTER for ERROR settings.
+   */
+  private static final Logger LOG = new Logger( true, false );
+
+  private static final String ALGORITHM = "SHA1";
+
+  /**
+   * Lower case ASCII hex digit of every nibble.
+   */
+  private static final byte[] HEX_DIGITS =
+      { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c',
+          'd', 'e', 'f' };
+
+  private static final ThreadLocal<HashEngine> ENGINES =
+      ThreadLocal.withInitial( HashEngine::new );
+
+  /**
+   * The message digest of this thread, or <code>null</code> if SHA-1
+   * is not available.
+   */
+  private final MessageDigest digest;
+
+  private final byte[] scratch =
+      new byte[ TransmissionUtilities.TWENTY_B ];
+
+  /**
+   * Default constructor - create the message digest for the thread.
+   *
+   */
+  private HashEngine() {
+    MessageDigest instance = null;
+    try
+    {
+      instance = MessageDigest.getInstance( ALGORITHM );
+    } catch ( NoSuchAlgorithmException e )
+    {
+      LOG.error( "No Such Algorithm, " + ALGORITHM + " " + e.getMessage() );
+    }
+    this.digest = instance;
+  }
+
+  /**
+   *
+   * @return the hashing engine of the current thread
+   */
+  public static HashEngine get() {
+    return ENGINES.get();
+  }
+
+  /**
+   * Compute the raw SHA-1 digest of the remaining bytes of a buffer.
+   * The position of the data is advanced to its limit, and the twenty
+   * byte digest is put into the output buffer.
+   *
+   * @param data buffer containing the bytes to hash
+   * @param out buffer to put the digest into
+   * @return false if the digest could not be computed, in which case
+   *         zeros are put instead
+   */
+  public boolean digest(ByteBuffer data, ByteBuffer out) {
+    boolean computed = compute( data );
+    out.put( scratch );
+    return computed;
+  }
+
+  /**
+   * Compute the SHA-1 digest of the remaining bytes of a buffer, and
+   * put it into the output buffer as forty ASCII hex characters.
+   *
+   * @param data buffer containing the bytes to hash
+   * @param out buffer to put the hex digest into
+   * @return false if the digest could not be computed, in which case
+   *         zeros are put instead
+   */
+  public boolean hex(ByteBuffer data, ByteBuffer out) {
+    boolean computed = compute( data );
+    hex( scratch, 0, scratch.length, out );
+    return computed;
+  }
+
+  /**
+   * Put bytes into a buffer as lower case ASCII hex characters, two
+   * for each byte.
+   *
+   * @param bytes
+   * @param offset of the first byte to encode
+   * @param length number of bytes to encode
+   * @param out buffer to put the hex characters into
+   */
+  public static void hex(byte[] bytes, int offset, int length,
+      ByteBuffer out) {
+    for ( int i = offset; i < offset + length; ++i )
+    {
+      out.put( HEX_DIGITS[ ( bytes[ i ] >> 4 ) & 0xF ] );
+      out.put( HEX_DIGITS[ bytes[ i ] & 0xF ] );
+    }
+  }
+
+  /**
+   * Decode lower or upper case ASCII hex characters from the remaining
+   * bytes of a buffer, putting one byte into the output buffer for
+   * every two characters.
+   *
+   * @param hex buffer with an even number of hex characters remaining
+   * @param out buffer to put the decoded bytes into
+   * @return false if a character is not a hex digit
+   */
+  public static boolean unhex(ByteBuffer hex, ByteBuffer out) {
+    while ( hex.remaining() > 1 )
+    {
+      int high = Character.digit( hex.get(), 16 );
+      int low = Character.digit( hex.get(), 16 );
+      if ( high < 0 || low < 0 )
+      {
+        return false;
+      }
+      out.put( ( byte ) ( ( high << 4 ) | low ) );
+    }
+    return true;
+  }
+
+  /**
+   * Digest the remaining bytes of the data into the scratch array.
+   *
+   * @param data
+   * @return false if the scratch array was zeroed instead
+   */
+  private boolean compute(ByteBuffer data) {
+    if ( digest != null )
+    {
+      digest.update( data );
+      try
+      {
+        digest.digest( scratch, 0, scratch.length );
+        return true;
+      } catch ( DigestException e )
+      {
+        LOG.error( "Unable to compute digest: " + e.getMessage() );
+        digest.reset();
+      }
+    } else
+    {
+      data.position( data.limit() );
+    }
+    Arrays.fill( scratch, ( byte ) 0 );
+    return false;
+  }
+}
@@ -0,0 +1,169 @@
+package cs455.scaling.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+
+/**
+ * Concurrent histogram of latencies in nanoseconds, with log-linear
+ * buckets in the style of an HDR histogram.
+ *
+ * Values below 128 are counted exactly. Above that, every power of two
+ * is split into 64 linear sub-buckets, so a percentile is reported
+ * within 1.6% of the recorded value, from nanoseconds up to hours, with
+ * a fixed number of counters. Recording does not allocate or lock.
+ *
+ * The counters are striped by thread, so threads recording at the same
+ * time mostly update cache lines of their own, and the stripes are
+ * merged when a snapshot is taken.
+ *
+ * @author stock
+ *
+ */
+public class LatencyHistogram {
+
+  /**
+   * Bits of precision for each power of two.
+   */
+  private static final int SUB_BUCKET_BITS = 7;
+
+  private static final int SUB_BUCKET_HALF = 1 << ( SUB_BUCKET_BITS - 1 );
+
+  /**
+   * Largest value that is recorded; larger values are clamped to it.
+   */
+  private static final long HIGHEST = TimeUnit.HOURS.toNanos( 1 );
+
+  private static final int BUCKETS = index( HIGHEST ) + 1;
+
+  /**
+   * Number of stripes of counters, a power of two of at least the
+   * number of processors, up to 16.
+   */
+  private static final int STRIPES = Integer.highestOneBit(
+      Math.min( Math.max( Runtime.getRuntime().availableProcessors(), 1 ),
+          16 ) * 2 - 1 );
+
+  /**
+   * The counters of every stripe, one after another.
+   */
+  private final AtomicLongArray counts =
+      new AtomicLongArray( STRIPES * BUCKETS );
+
+  private final LongAccumulator max = new LongAccumulator( Math::max, 0 );
+
+  /**
+   * Counts taken by the last snapshot, only used by the reporting
+   * thread.
+   */
+  private final long[] snapshot = new long[ BUCKETS ];
+
+  private long total;
+
+  private long highest;
+
+  /**
+   * Record a single latency.
+   *
+   * @param nanos
+   */
+  public void record(long nanos) {
+    long value = Math.min( Math.max( nanos, 0 ), HIGHEST );
+    int stripe =
+        ( int ) Thread.currentThread().getId() & ( STRIPES - 1 );
+    counts.incrementAndGet( stripe * BUCKETS + index( value ) );
+    max.accumulate( value );
+  }
+
+  /**
+   * Take the values recorded since the last snapshot, merging the
+   * stripes and resetting the histogram. Percentiles are then read from
+   * the snapshot. A single thread must take snapshots and read the
+   * percentiles.
+   *
+   * @return the number of values in the snapshot
+   */
+  public long snapshot() {
+    total = 0;
+    for ( int i = 0; i < snapshot.length; ++i )
+    {
+      long count = 0;
+      for ( int stripe = 0; stripe < STRIPES; ++stripe )
+      {
+        count += counts.getAndSet( stripe * BUCKETS + i, 0 );
+      }
+      snapshot[ i ] = count;
+      total += count;
+    }
+    highest = max.getThenReset();
+    return total;
+  }
+
+  /**
+   *
+   * @param percentile between 0 and 100
+   * @return the value at the percentile of the last snapshot, reported
+   *         as the highest value of its bucket, or zero if empty
+   */
+  public long percentile(double percentile) {
+    long rank = Math.max( 1, ( long ) Math.ceil( percentile / 100 * total ) );
+    long seen = 0;
+    for ( int i = 0; i < snapshot.length; ++i )
+    {
+      seen += snapshot[ i ];
+      if ( seen >= rank )
+      {
+        return Math.min( lowest( i + 1 ) - 1, highest );
+      }
+    }
+    return 0;
+  }
+
+  /**
+   *
+   * @return the largest value of the last snapshot
+   */
+  public long max() {
+    return highest;
+  }
+
+  /**
+   * Format the percentiles of the last snapshot in milliseconds.
+   *
+   * @return p50, p99, p99.9 and max of the snapshot
+   */
+  public String summary() {
+    return String.format( "p50: %.3f ms, p99: %.3f ms, p99.9: %.3f ms, "
+        + "max: %.3f ms", millis( percentile( 50 ) ),
+        millis( percentile( 99 ) ), millis( percentile( 99.9 ) ),
+        millis( highest ) );
+  }
+
+  private static double millis(long nanos) {
+    return nanos / 1e6;
+  }
+
+  /**
+   * Values below the sub-bucket count map to themselves; above, the
+   * value is shifted down to the sub-bucket count, and the shift picks
+   * the range of buckets.
+   *
+   * @param value
+   * @return the index of the bucket counting the value
+   */
+  private static int index(long value) {
+    int shift = Math.max( 0,
+        63 - Long.numberOfLeadingZeros( value ) - ( SUB_BUCKET_BITS - 1 ) );
+    return shift * SUB_BUCKET_HALF + ( int ) ( value >>> shift );
+  }
+
+  /**
+   *
+   * @param index
+   * @return the lowest value counted by the bucket
+   */
+  private static long lowest(int index) {
+    int shift = Math.max( 0, index / SUB_BUCKET_HALF - 1 );
+    return ( long ) ( index - shift * SUB_BUCKET_HALF ) << shift;
+  }
+}
@@ -1,8 +1,8 @@
 package cs455.scaling.util;
 
-import java.math.BigInteger;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  * Utilities class that are shared between the client and the server.
@@ -28,6 +28,86 @@ public class TransmissionUtilities {
    */
   public static final int FORTY_B = 40;
 
+  /**
+   * Length of a raw SHA-1 digest, used for binary acknowledgements.
+   */
+  public static final int TWENTY_B = 20;
+
+  /**
+   * Magic number that starts the hello a client sends before its first
+   * message to negotiate the protocol. Clients that do not send a hello
+   * receive hex acknowledgements.
+   */
+  public static final long HELLO = 0x6373343535616B32L;
+
+  /**
+   * Length of the hello; the magic number followed by an
+   * <code>int</code> of protocol options.
+   */
+  public static final int HELLO_LENGTH = 12;
+
+  /**
+   * Protocol option of the original hex string acknowledgements.
+   */
+  public static final int HEX_ACKS = 0;
+
+  /**
+   * Protocol option for acknowledgements of the raw 20 byte digest.
+   */
+  public static final int BINARY_ACKS = 1;
+
+  /**
+   * Protocol option to follow each binary acknowledgement with the
+   * <code>int</code> sequence number of the message on the connection.
+   */
+  public static final int SEQUENCE_NUMBERS = 2;
+
+  /**
+   * Length of an acknowledgement sent from the server to the client.
+   * 
+   * @param options the negotiated protocol options
+   * @return the number of bytes of each acknowledgement
+   */
+  public static int ackLength(int options) {
+    if ( ( options & BINARY_ACKS ) == 0 )
+    {
+      return FORTY_B;
+    }
+    return ( options & SEQUENCE_NUMBERS ) == 0 ? TWENTY_B
+        : TWENTY_B + Integer.BYTES;
+  }
+
+  /**
+   * Length of the digest at the start of each acknowledgement.
+   * 
+   * @param options the negotiated protocol options
+   * @return the number of bytes of the digest
+   */
+  public static int digestLength(int options) {
+    return ( options & BINARY_ACKS ) == 0 ? FORTY_B : TWENTY_B;
+  }
+
+  /**
+   * Fill a buffer, from its position to its limit, with random bytes
+   * from the generator of the current thread. Eight bytes are put at a
+   * time, and nothing is allocated, so a single direct buffer can be
+   * reused for every message. The position is not changed.
+   * 
+   * @param buffer
+   */
+  public static void randomize(ByteBuffer buffer) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int index = buffer.position();
+    for ( ; index + Long.BYTES <= buffer.limit(); index += Long.BYTES )
+    {
+      buffer.putLong( index, random.nextLong() );
+    }
+    for ( ; index < buffer.limit(); ++index )
+    {
+      buffer.put( index, ( byte ) random.nextInt() );
+    }
+  }
+
   /**
    * Computes the SHA-1 hash of a byte array to a <code>String</code>.
    * The returned value will be left padded with zeros if less than
@@ -37,18 +117,57 @@ public class TransmissionUtilities {
    * @return its representation as a hex string
    */
   public static String SHA1FromBytes(byte[] data) {
-    MessageDigest digest = null;
-    String algorithm = "SHA1";
-    try
-    {
-      digest = MessageDigest.getInstance( algorithm );
-    } catch ( NoSuchAlgorithmException e )
+    return SHA1FromBuffer( ByteBuffer.wrap( data ) );
+  }
+
+  /**
+   * Computes the SHA-1 hash of the remaining bytes of a buffer to a
+   * <code>String</code>. The buffer may be direct, and its position is
+   * advanced to the limit.
+   * 
+   * Hot paths should use {@link HashEngine} directly to avoid
+   * allocating the result.
+   * 
+   * @param data buffer containing the bytes to hash
+   * @return its representation as a hex string
+   */
+  public static String SHA1FromBuffer(ByteBuffer data) {
+    byte[] hex = new byte[ FORTY_B ];
+    if ( !HashEngine.get().hex( data, ByteBuffer.wrap( hex ) ) )
     {
-      LOG.error( "No Such Algorithm, " + algorithm + " " + e.getMessage() );
       return "ERROR";
     }
-    byte[] hash = digest.digest( data );
-    BigInteger hashInt = new BigInteger( 1, hash );
-    return String.format( "%40s", hashInt.toString( 16 ) ).replace( ' ', '0' );
+    return new String( hex, StandardCharsets.US_ASCII );
+  }
+
+  /**
+   * Computes the raw SHA-1 digest of the remaining bytes of a buffer.
+   * The buffer may be direct, and its position is advanced to the
+   * limit.
+   * 
+   * @param data buffer containing the bytes to hash
+   * @return the twenty byte digest, or <code>null</code> if SHA-1 is
+   *         not available
+   */
+  public static byte[] SHA1(ByteBuffer data) {
+    byte[] hash = new byte[ TWENTY_B ];
+    if ( !HashEngine.get().digest( data, ByteBuffer.wrap( hash ) ) )
+    {
+      return null;
+    }
+    return hash;
+  }
+
+  /**
+   * Convert a digest to its hex string, two lower case characters for
+   * each byte.
+   * 
+   * @param hash
+   * @return its representation as a hex string
+   */
+  public static String toHex(byte[] hash) {
+    byte[] hex = new byte[ hash.length * 2 ];
+    HashEngine.hex( hash, 0, hash.length, ByteBuffer.wrap( hex ) );
+    return new String( hex, StandardCharsets.US_ASCII );
   }
 }